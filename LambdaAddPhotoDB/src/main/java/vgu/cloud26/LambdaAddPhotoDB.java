@@ -5,12 +5,15 @@ import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.Types;
 import java.util.Base64;
 import java.util.Properties;
 import javax.crypto.Mac;
@@ -22,6 +25,9 @@ import software.amazon.awssdk.services.ssm.SsmClient;
 import software.amazon.awssdk.services.ssm.model.GetParameterRequest;
 import software.amazon.awssdk.services.ssm.model.GetParameterResponse;
 import software.amazon.awssdk.services.ssm.model.SsmException;
+import vgu.cloud26.thumbnail.PerceptualHash;
+import vgu.cloud26.thumbnail.Placeholder;
+import vgu.cloud26.thumbnail.ThumbnailEngine;
 
 public class LambdaAddPhotoDB
     implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
@@ -53,6 +59,10 @@ public class LambdaAddPhotoDB
           .region(Region.AP_SOUTHEAST_2)
           .build();
 
+  // Shared thumbnail engine, used here only for the placeholder colour grid
+  // and the perceptual hash when the caller did not send them
+  private static final ThumbnailEngine engine = ThumbnailEngine.fromEnvironment();
+
   @Override
   public APIGatewayProxyResponseEvent handleRequest(
       APIGatewayProxyRequestEvent event, Context context) {
@@ -138,6 +148,24 @@ public class LambdaAddPhotoDB
 
       logger.log("Processing DB insert for file: " + originalFileName + ", email from token: " + email);
 
+      // The upload orchestrator forwards the placeholder and perceptual hash it
+      // computed for its duplicate check. Otherwise (a direct call) derive them
+      // from the content here rather than wait for the thumbnail, which the
+      // workflow makes in parallel.
+      String placeholder = bodyJSON.optString("placeholder", null);
+      if (placeholder != null && placeholder.length() != Placeholder.LENGTH) {
+        placeholder = null;
+      }
+      Long perceptualHash = bodyJSON.has("perceptualHash") ? bodyJSON.optLong("perceptualHash") : null;
+      BufferedImage small = placeholder != null && perceptualHash != null ? null
+          : decodeSmall(bodyJSON.optString("content", ""), context, logger);
+      if (small != null) {
+        placeholder = Placeholder.colorGrid(small);
+        perceptualHash = PerceptualHash.dHash(small);
+        engine.release(small);
+        logger.log("Placeholder: " + placeholder + ", perceptual hash: " + Long.toHexString(perceptualHash));
+      }
+
       Class.forName("com.mysql.cj.jdbc.Driver");
 
       // 2. Connect to MySQL server (without database name) to create database if
@@ -161,7 +189,9 @@ public class LambdaAddPhotoDB
               "ID INT AUTO_INCREMENT PRIMARY KEY, " +
               "Description VARCHAR(255), " +
               "S3Key VARCHAR(255), " +
-              "Email VARCHAR(255)" +
+              "Email VARCHAR(255), " +
+              "Placeholder VARCHAR(" + Placeholder.LENGTH + "), " +
+              "PerceptualHash BIGINT" +
               ")";
           stmt.executeUpdate(createTableSql);
           logger.log("Table Photos created or already exists");
@@ -174,16 +204,40 @@ public class LambdaAddPhotoDB
             // Column already exists, ignore
             logger.log("Email column already exists or error: " + e.getMessage());
           }
+
+          // Add Placeholder column if it doesn't exist (for existing tables)
+          try {
+            stmt.executeUpdate("ALTER TABLE Photos ADD COLUMN Placeholder VARCHAR(" + Placeholder.LENGTH + ")");
+            logger.log("Added Placeholder column to Photos table");
+          } catch (Exception e) {
+            // Column already exists, ignore
+            logger.log("Placeholder column already exists or error: " + e.getMessage());
+          }
+
+          // Add PerceptualHash column if it doesn't exist (for existing tables)
+          try {
+            stmt.executeUpdate("ALTER TABLE Photos ADD COLUMN PerceptualHash BIGINT");
+            logger.log("Added PerceptualHash column to Photos table");
+          } catch (Exception e) {
+            // Column already exists, ignore
+            logger.log("PerceptualHash column already exists or error: " + e.getMessage());
+          }
         }
 
         // Email already verified and extracted from token above
 
         // 4. Insert the photo record
-        String sql = "INSERT INTO Photos (Description, S3Key, Email) VALUES (?, ?, ?)";
+        String sql = "INSERT INTO Photos (Description, S3Key, Email, Placeholder, PerceptualHash) VALUES (?, ?, ?, ?, ?)";
         try (PreparedStatement st = mySQLClient.prepareStatement(sql)) {
           st.setString(1, description); // User's Description
           st.setString(2, originalFileName); // ACTUAL filename (not hash!)
           st.setString(3, email != null && !email.isEmpty() ? email : null); // User's Email (can be null for old uploads)
+          st.setString(4, placeholder); // 4x4 colour grid, null for non-images
+          if (perceptualHash != null) {
+            st.setLong(5, perceptualHash); // dHash for the upload orchestrator's duplicate check
+          } else {
+            st.setNull(5, Types.BIGINT);
+          }
           st.executeUpdate();
           logger.log("Inserted row: " + description + " | " + originalFileName + " | Email: " + (email != null && !email.isEmpty() ? email : "NULL"));
         }
@@ -201,6 +255,27 @@ public class LambdaAddPhotoDB
     }
   }
 
+  // Small raster for the 4x4 colour grid (the gallery's first paint) and the
+  // perceptual hash. Best effort: a missing or undecodable image only means the
+  // row has neither.
+  private BufferedImage decodeSmall(String content, Context context, LambdaLogger logger) {
+    if (content.isEmpty()) {
+      return null;
+    }
+    try {
+      byte[] imageBytes = Base64.getDecoder().decode(content);
+      BufferedImage small = engine.thumbnail(new ByteArrayInputStream(imageBytes),
+          PerceptualHash.SOURCE_DIMENSION, context.getMemoryLimitInMB());
+      if (small == null) {
+        logger.log("No placeholder or perceptual hash: not an image");
+      }
+      return small;
+    } catch (Exception e) {
+      logger.log("Could not compute placeholder: " + e.getMessage());
+      return null;
+    }
+  }
+
   // Helper to create standardized JSON response with CORS
   private APIGatewayProxyResponseEvent createResponse(int statusCode, String message) {
     java.util.Map<String, String> headers = new java.util.HashMap<>();
@@ -0,0 +1,151 @@
+package vgu.cloud26.common;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+/**
+ * The change journal at {@link #KEY} in the resized bucket: a sequence
+ * number and the last {@link #CAPACITY} uploaded or deleted keys, as
+ * {@code {"seq": n, "changes": [{"seq": n, "key": "..."}, ...]}}.
+ * LambdaUploadObjects and LambdaDeleteResized append to it;
+ * LambdaGetResizedImage reads it and forgets what it cached about exactly the
+ * keys added since its last read, and moves those keys between atlas pages.
+ *
+ * <p>An append reads the journal and PUTs it back conditional on the ETag it
+ * read, retrying when a concurrent writer got in first.
+ */
+public final class ChangeJournal {
+
+    public static final String KEY = "stamps/upload";
+    public static final int CAPACITY = 500;
+
+    private static final int ATTEMPTS = 5;
+
+    private final S3Client s3Client;
+    private final String bucket;
+
+    public ChangeJournal(S3Client s3Client, String bucket) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+    }
+
+    /**
+     * @return the journal, or an empty one (sequence 0) when there is none yet
+     *         or it is a plain stamp from before the journal
+     * @throws S3Exception on any other S3 error
+     */
+    public JSONObject read() {
+        try {
+            return parse(s3Client.getObjectAsBytes(GetObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(KEY)
+                    .build()).asUtf8String());
+        } catch (NoSuchKeyException e) {
+            return new JSONObject();
+        }
+    }
+
+    public static JSONObject parse(String json) {
+        try {
+            return new JSONObject(json);
+        } catch (JSONException e) {
+            return new JSONObject();
+        }
+    }
+
+    public static long seq(JSONObject journal) {
+        return journal.optLong("seq");
+    }
+
+    /**
+     * @param sinceSeq the {@link #seq} of the journal as last read, or -1 when
+     *        it was never read
+     * @return the keys appended after sinceSeq, oldest first, or null when
+     *         that cannot be told: never read, the journal started over, or
+     *         entries rotated out in between
+     */
+    public static Set<String> changedSince(JSONObject journal, long sinceSeq) {
+        long seq = seq(journal);
+        JSONArray changes = journal.optJSONArray("changes");
+        if (changes == null) {
+            changes = new JSONArray();
+        }
+        long oldest = changes.isEmpty() ? seq + 1 : changes.getJSONObject(0).optLong("seq");
+        if (sinceSeq < 0 || seq < sinceSeq || oldest > sinceSeq + 1) {
+            return null;
+        }
+        Set<String> changed = new LinkedHashSet<>();
+        for (int i = 0; i < changes.length(); i++) {
+            JSONObject change = changes.getJSONObject(i);
+            if (change.optLong("seq") > sinceSeq) {
+                changed.add(change.optString("key"));
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return false when every attempt lost to a concurrent writer
+     * @throws S3Exception on any other S3 error
+     */
+    public boolean append(String key) {
+        for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+            JSONObject journal = new JSONObject();
+            String eTag = null;
+            try {
+                ResponseBytes<GetObjectResponse> current = s3Client.getObjectAsBytes(GetObjectRequest.builder()
+                        .bucket(bucket)
+                        .key(KEY)
+                        .build());
+                eTag = current.response().eTag();
+                journal = new JSONObject(current.asUtf8String());
+            } catch (NoSuchKeyException e) {
+                // First change
+            } catch (JSONException e) {
+                // A plain stamp from before the journal; replaced, readers start over
+            }
+
+            long seq = journal.optLong("seq") + 1;
+            JSONArray changes = journal.optJSONArray("changes");
+            if (changes == null) {
+                changes = new JSONArray();
+            }
+            changes.put(new JSONObject().put("seq", seq).put("key", key));
+            while (changes.length() > CAPACITY) {
+                changes.remove(0);
+            }
+            journal.put("seq", seq).put("changes", changes);
+
+            PutObjectRequest.Builder put = PutObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(KEY)
+                    .contentType("application/json");
+            if (eTag != null) {
+                put.ifMatch(eTag);
+            } else {
+                put.ifNoneMatch("*");
+            }
+            try {
+                s3Client.putObject(put.build(), RequestBody.fromString(journal.toString()));
+                return true;
+            } catch (S3Exception e) {
+                // 412/409: another writer appended first; read it again
+                if (e.statusCode() != 412 && e.statusCode() != 409) {
+                    throw e;
+                }
+            }
+        }
+        return false;
+    }
+}
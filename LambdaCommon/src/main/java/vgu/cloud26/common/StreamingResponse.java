@@ -0,0 +1,110 @@
+package vgu.cloud26.common;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Proxy response whose body is still an open stream, plus the (de)serialization
+ * the RequestStreamHandler variant does itself. The body is written as the
+ * proxy JSON's base64 "body", encoded in fixed-size chunks as it is read, so
+ * heap use does not grow with the object. Shared by the streaming handlers of
+ * LambdaGetObjects and LambdaGetResizedImage.
+ */
+public final class StreamingResponse extends APIGatewayProxyResponseEvent {
+
+    private static final int CHUNK_BYTES = 64 * 1024;
+
+    private final transient InputStream bodyStream;
+
+    public StreamingResponse(int statusCode, Map<String, String> headers, InputStream bodyStream) {
+        this.bodyStream = bodyStream;
+        setStatusCode(statusCode);
+        setHeaders(headers);
+        setIsBase64Encoded(true);
+    }
+
+    /**
+     * Parse the API Gateway proxy event the function was invoked with.
+     */
+    public static APIGatewayProxyRequestEvent readRequest(InputStream input) {
+        JSONObject json = new JSONObject(new JSONTokener(new InputStreamReader(input, StandardCharsets.UTF_8)));
+        APIGatewayProxyRequestEvent request = new APIGatewayProxyRequestEvent();
+        request.setHttpMethod(json.optString("httpMethod", null));
+        request.setPath(json.optString("path", null));
+        request.setBody(json.isNull("body") ? null : json.optString("body", null));
+        request.setIsBase64Encoded(json.optBoolean("isBase64Encoded", false));
+        request.setHeaders(toMap(json.optJSONObject("headers")));
+        request.setQueryStringParameters(toMap(json.optJSONObject("queryStringParameters")));
+        return request;
+    }
+
+    /**
+     * Write a response as proxy JSON. A StreamingResponse's stream is copied
+     * into the body and closed; any other response is written as it is.
+     */
+    public static void write(APIGatewayProxyResponseEvent response, OutputStream output) throws IOException {
+        JSONObject json = new JSONObject();
+        json.put("statusCode", response.getStatusCode());
+        json.put("headers", response.getHeaders() != null ? new JSONObject(response.getHeaders()) : new JSONObject());
+        json.put("isBase64Encoded", Boolean.TRUE.equals(response.getIsBase64Encoded()));
+        if (!(response instanceof StreamingResponse)) {
+            json.put("body", response.getBody() != null ? response.getBody() : "");
+            output.write(json.toString().getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+
+        // The body goes last, written around: base64 needs no JSON escaping
+        String head = json.toString();
+        output.write((head.substring(0, head.length() - 1) + ",\"body\":\"").getBytes(StandardCharsets.UTF_8));
+        try (InputStream body = ((StreamingResponse) response).bodyStream;
+                OutputStream encoder = Base64.getEncoder().wrap(new UnclosedOutputStream(output))) {
+            byte[] chunk = new byte[CHUNK_BYTES];
+            int read;
+            while ((read = body.read(chunk)) != -1) {
+                encoder.write(chunk, 0, read);
+            }
+        }
+        output.write("\"}".getBytes(StandardCharsets.UTF_8));
+        output.flush();
+    }
+
+    private static Map<String, String> toMap(JSONObject json) {
+        if (json == null) {
+            return null;
+        }
+        Map<String, String> map = new HashMap<>();
+        for (String key : json.keySet()) {
+            map.put(key, json.optString(key, null));
+        }
+        return map;
+    }
+
+    // Closing the encoder writes the base64 padding; the Lambda output must
+    // stay open for the rest of the JSON
+    private static final class UnclosedOutputStream extends FilterOutputStream {
+        UnclosedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
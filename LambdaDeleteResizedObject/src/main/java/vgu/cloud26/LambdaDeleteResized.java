@@ -5,13 +5,23 @@ import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.Delete;
 import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.S3Object;
+import vgu.cloud26.common.ChangeJournal;
 
 /**
  * WORKER Lambda - Delete from Resized S3 Bucket
@@ -25,6 +35,9 @@ public class LambdaDeleteResized
       .build();
 
   private static final String RESIZED_BUCKET_NAME = System.getenv("RESIZED_BUCKET_NAME");
+  // Same list LambdaResize generates; sizes other than 100 live under "resized/<size>/<key>"
+  private static final String DERIVATIVE_SIZES = System.getenv()
+      .getOrDefault("DERIVATIVE_SIZES", "100,320,1024");
 
   static {
     if (RESIZED_BUCKET_NAME == null) {
@@ -86,9 +99,37 @@ public class LambdaDeleteResized
       s3Client.deleteObject(deleteRequest);
       logger.log("Successfully deleted from resized bucket: " + resizedKey);
 
+      // Delete the larger derivatives as well
+      List<String> derivativeKeys = new ArrayList<>();
+      for (String size : DERIVATIVE_SIZES.split(",")) {
+        String trimmed = size.trim();
+        if (trimmed.isEmpty() || trimmed.equals("100")) {
+          continue;
+        }
+        String derivativeKey = "resized/" + trimmed + "/" + key;
+        s3Client.deleteObject(DeleteObjectRequest.builder()
+            .bucket(RESIZED_BUCKET_NAME)
+            .key(derivativeKey)
+            .build());
+        derivativeKeys.add(derivativeKey);
+      }
+
+      // And the parameterised ones LambdaGetResizedImage stored on demand
+      // (?w=&h=&fit=&fmt=), all under one prefix per original
+      derivativeKeys.addAll(deletePrefix("transformed/" + key + "/"));
+      logger.log("Deleted derivatives: " + derivativeKeys);
+
+      // And the Deep Zoom pyramid LambdaTile builds for large originals;
+      // thousands of tiles, so only counted
+      int tileCount = deletePrefix("tiles/" + key + "/").size();
+      logger.log("Deleted " + tileCount + " Deep Zoom objects");
+      recordChange(key, logger);
+
       JSONObject response = new JSONObject();
       response.put("message", "Success: Deleted from resized S3 bucket");
       response.put("key", resizedKey);
+      response.put("derivatives", new JSONArray(derivativeKeys));
+      response.put("tiles", tileCount);
       response.put("bucket", RESIZED_BUCKET_NAME);
 
       return createResponse(200, response.toString());
@@ -102,6 +143,39 @@ public class LambdaDeleteResized
     }
   }
 
+  // Best effort: without it, cached thumbnails are still revalidated by age
+  private void recordChange(String key, LambdaLogger logger) {
+    try {
+      if (!new ChangeJournal(s3Client, RESIZED_BUCKET_NAME).append(key)) {
+        logger.log("Could not update change journal: too many concurrent writers");
+      }
+    } catch (Exception e) {
+      logger.log("Could not update change journal: " + e.getMessage());
+    }
+  }
+
+  // Delete every object under a prefix, one page (up to 1000 keys) per call
+  private List<String> deletePrefix(String prefix) {
+    List<String> deleted = new ArrayList<>();
+    for (ListObjectsV2Response page : s3Client.listObjectsV2Paginator(ListObjectsV2Request.builder()
+        .bucket(RESIZED_BUCKET_NAME)
+        .prefix(prefix)
+        .build())) {
+      List<ObjectIdentifier> objects = new ArrayList<>();
+      for (S3Object object : page.contents()) {
+        objects.add(ObjectIdentifier.builder().key(object.key()).build());
+        deleted.add(object.key());
+      }
+      if (!objects.isEmpty()) {
+        s3Client.deleteObjects(DeleteObjectsRequest.builder()
+            .bucket(RESIZED_BUCKET_NAME)
+            .delete(Delete.builder().objects(objects).build())
+            .build());
+      }
+    }
+    return deleted;
+  }
+
   private APIGatewayProxyResponseEvent createResponse(int statusCode, String body) {
     Map<String, String> headers = new HashMap<>();
     headers.put("Content-Type", "application/json");
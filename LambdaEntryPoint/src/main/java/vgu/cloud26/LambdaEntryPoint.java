@@ -75,6 +75,18 @@ public class LambdaEntryPoint implements
                 } else if (format.equals("photos") || format.equals("db")) {
                     action = "get_photos_db";
                     queryStringMatched = true;
+                } else if (format.equals("atlas")) {
+                    action = "get_atlas"; // Sprite atlas of one gallery page
+                    queryStringMatched = true;
+                } else if (format.equals("batch")) {
+                    action = "get_resized_batch"; // Many thumbnails per call
+                    queryStringMatched = true;
+                } else if (format.equals("dzi")) {
+                    action = "get_dzi"; // Deep Zoom descriptor of a large original
+                    queryStringMatched = true;
+                } else if (format.equals("tile")) {
+                    action = "get_tile"; // One Deep Zoom tile
+                    queryStringMatched = true;
                 }
             } else if (event.getQueryStringParameters().containsKey("resized")) {
                 action = "get_resized";
@@ -118,7 +130,8 @@ public class LambdaEntryPoint implements
             lambdaEvent.put("body", "{}");
         }
 
-        // Forward headers so downstream can detect content-type / accept
+        // Forward headers so downstream can detect content-type / accept, and
+        // answer If-None-Match / If-Modified-Since with a 304
         if (event.getHeaders() != null && !event.getHeaders().isEmpty()) {
             lambdaEvent.put("headers", new JSONObject(event.getHeaders()));
         }
@@ -138,7 +151,9 @@ public class LambdaEntryPoint implements
             functionName = UPLOAD_FUNC_NAME;
         } else if (action.equalsIgnoreCase("list")) {
             functionName = LIST_FUNC_NAME;
-        } else if (action.equalsIgnoreCase("get_resized")) {
+        } else if (action.equalsIgnoreCase("get_resized") || action.equalsIgnoreCase("get_atlas")
+                || action.equalsIgnoreCase("get_resized_batch") || action.equalsIgnoreCase("get_dzi")
+                || action.equalsIgnoreCase("get_tile")) {
             functionName = GET_RESIZED_FUNC_NAME;
         } else if (action.equalsIgnoreCase("get_photos_db")) {
             functionName = GET_PHOTOS_DB_FUNC_NAME;
@@ -178,8 +193,10 @@ public class LambdaEntryPoint implements
                     response.setStatusCode(200);
                 }
                 
-                // Forward body
-                if (responseObject.has("body")) {
+                // Forward body; a 304 has none, whatever the worker put there
+                if (response.getStatusCode() == 304) {
+                    response.setBody("");
+                } else if (responseObject.has("body")) {
                     String bodyStr = responseObject.getString("body");
                     response.setBody(bodyStr != null ? bodyStr : "{\"message\":\"Success\"}");
                 } else {
@@ -187,7 +204,9 @@ public class LambdaEntryPoint implements
                     response.setBody(responseObject.toString());
                 }
                 
-                // Forward headers and ensure CORS headers are always present
+                // Forward headers (Content-Type; ETag / Last-Modified / Cache-Control for
+                // conditional reads; Content-Range for ranged ones) and ensure CORS headers
+                // are always present
                 java.util.Map<String, String> headerMap = new java.util.HashMap<>();
                 if (responseObject.has("headers")) {
                     JSONObject headers = responseObject.getJSONObject("headers");
@@ -198,11 +217,14 @@ public class LambdaEntryPoint implements
                 // Always add CORS headers (override if already present)
                 headerMap.put("Access-Control-Allow-Origin", "*");
                 headerMap.put("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
-                headerMap.put("Access-Control-Allow-Headers", "Content-Type, Authorization");
+                headerMap.put("Access-Control-Allow-Headers", "Content-Type, Authorization, If-None-Match, If-Modified-Since, Range, If-Range");
+                headerMap.put("Access-Control-Expose-Headers", "ETag, Last-Modified, Accept-Ranges, Content-Range");
                 response.setHeaders(headerMap);
                 
                 // Forward isBase64Encoded
-                if (responseObject.has("isBase64Encoded")) {
+                if (response.getStatusCode() == 304) {
+                    response.setIsBase64Encoded(false);
+                } else if (responseObject.has("isBase64Encoded")) {
                     response.setIsBase64Encoded(responseObject.getBoolean("isBase64Encoded"));
                 }
                 
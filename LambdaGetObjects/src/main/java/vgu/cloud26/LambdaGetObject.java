@@ -4,6 +4,12 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.Base64;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
@@ -31,6 +37,8 @@ import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
 import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
 import software.amazon.awssdk.services.s3.model.S3Object;
 import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
 import software.amazon.awssdk.services.ssm.SsmClient;
 import software.amazon.awssdk.services.ssm.model.GetParameterRequest;
 import software.amazon.awssdk.services.ssm.model.GetParameterResponse;
@@ -55,9 +63,21 @@ public class LambdaGetObject implements RequestHandler<APIGatewayProxyRequestEve
             .region(Region.AP_SOUTHEAST_2)
             .build();
 
+    // Signs locally with the function's credentials; no request to S3
+    private static final S3Presigner s3Presigner = S3Presigner.builder()
+            .region(Region.AP_SOUTHEAST_2)
+            .build();
+
     // 2. CONFIGURATION: Environment Variables
     private static final String BUCKET_NAME = System.getenv("BUCKET_NAME");
     private static final String TOKEN_CHECKER_FUNC_NAME = System.getenv().getOrDefault("TOKEN_CHECKER_FUNC_NAME", "LambdaTokenChecker");
+    // Lifetime of presigned download URLs (delivery "url" or "redirect"); the
+    // URL also stops working when the function's session credentials expire
+    private static final long PRESIGN_TTL_SECONDS = Long.parseLong(
+            System.getenv().getOrDefault("PRESIGN_TTL_SECONDS", "300"));
+    // Largest slice one ranged response returns: 4 MB is 5.3 MB as base64,
+    // inside the 6 MB response limit
+    private static final long MAX_RANGE_BYTES = 4L * 1024 * 1024;
 
     static {
         if (BUCKET_NAME == null) {
@@ -75,6 +95,10 @@ public class LambdaGetObject implements RequestHandler<APIGatewayProxyRequestEve
         // Case-insensitive header lookup
         String acceptHeader = null;
         String contentTypeHeader = null;
+        String ifNoneMatchHeader = null;
+        String ifModifiedSinceHeader = null;
+        String rangeHeader = null;
+        String ifRangeHeader = null;
         if (request.getHeaders() != null) {
             for (java.util.Map.Entry<String, String> h : request.getHeaders().entrySet()) {
                 if (h.getKey() == null)
@@ -84,6 +108,14 @@ public class LambdaGetObject implements RequestHandler<APIGatewayProxyRequestEve
                     acceptHeader = h.getValue();
                 } else if (key.equalsIgnoreCase("Content-Type")) {
                     contentTypeHeader = h.getValue();
+                } else if (key.equalsIgnoreCase("If-None-Match")) {
+                    ifNoneMatchHeader = h.getValue();
+                } else if (key.equalsIgnoreCase("If-Modified-Since")) {
+                    ifModifiedSinceHeader = h.getValue();
+                } else if (key.equalsIgnoreCase("Range")) {
+                    rangeHeader = h.getValue();
+                } else if (key.equalsIgnoreCase("If-Range")) {
+                    ifRangeHeader = h.getValue();
                 }
             }
         }
@@ -115,12 +147,12 @@ public class LambdaGetObject implements RequestHandler<APIGatewayProxyRequestEve
             // Browser request with Accept: text/html should get HTML
             else if (acceptHeader != null && acceptHeader.toLowerCase().contains("text/html")) {
                 context.getLogger().log("Accept: text/html detected, returning index.html");
-                return getSpecificObject("index.html", context);
+                return getSpecificObject("index.html", ifNoneMatchHeader, ifModifiedSinceHeader, null, null, context);
             }
             // Default: if no clear indication, return HTML for browser compatibility
             else {
                 context.getLogger().log("No clear indication, defaulting to index.html for browser");
-                return getSpecificObject("index.html", context);
+                return getSpecificObject("index.html", ifNoneMatchHeader, ifModifiedSinceHeader, null, null, context);
             }
         }
 
@@ -163,73 +195,124 @@ public class LambdaGetObject implements RequestHandler<APIGatewayProxyRequestEve
             // SECURITY: Allow ANY authenticated user to download (no ownership check)
             // Only delete requires ownership verification
             context.getLogger().log("Token verified for download: " + email + ", key: " + key);
+
+            // Presigned delivery: the client downloads straight from S3, so the
+            // object never passes through this function (no size limit, no base64)
+            String delivery = bodyJSON.optString("delivery", "");
+            if (delivery.isEmpty() && request.getQueryStringParameters() != null) {
+                delivery = request.getQueryStringParameters().getOrDefault("delivery", "");
+            }
+            if (delivery.equals("url") || delivery.equals("redirect")) {
+                return createPresignedResponse(key, delivery.equals("redirect"), context);
+            }
         }
 
-        return getSpecificObject(key, context);
+        return getSpecificObject(key, ifNoneMatchHeader, ifModifiedSinceHeader, rangeHeader, ifRangeHeader,
+                context);
     }
 
-    private APIGatewayProxyResponseEvent getSpecificObject(String key, Context context) {
+    // Conditional read: the client's If-None-Match / If-Modified-Since go to S3
+    // on the HEAD, and an unchanged object is answered with a bodiless 304.
+    // Every full response carries ETag and Last-Modified for the next request.
+    // A Range header is served from an S3 ranged GET as 206 Partial Content.
+    private APIGatewayProxyResponseEvent getSpecificObject(String key, String ifNoneMatch, String ifModifiedSince,
+            String rangeHeader, String ifRange, Context context) {
         String mimeType = "application/octet-stream";
         String body = "";
         boolean isBase64 = true;
         int statusCode = 200;
+        java.util.Map<String, String> headers = new java.util.HashMap<>();
 
         try {
             // Check metadata directly instead of listing all objects
-            HeadObjectRequest headRequest = HeadObjectRequest.builder()
+            HeadObjectRequest.Builder headRequest = HeadObjectRequest.builder()
                     .bucket(BUCKET_NAME)
-                    .key(key)
-                    .build();
+                    .key(key);
+            if (ifNoneMatch != null && !ifNoneMatch.isEmpty()) {
+                headRequest.ifNoneMatch(ifNoneMatch);
+            }
+            Instant modifiedSince = parseHttpDate(ifModifiedSince);
+            if (modifiedSince != null) {
+                headRequest.ifModifiedSince(modifiedSince);
+            }
 
-            HeadObjectResponse meta = s3Client.headObject(headRequest);
+            HeadObjectResponse meta = s3Client.headObject(headRequest.build());
+            addValidators(headers, key, meta.eTag(), meta.lastModified());
             long objectSize = meta.contentLength();
             int maxSize = 10 * 1024 * 1024; // 10MB
+            headers.put("Accept-Ranges", "bytes");
+
+            // Determine Mime Type
+            String[] parts = key.split("\\.");
+            if (parts.length > 1) {
+                String ext = parts[parts.length - 1].toLowerCase();
+                if (ext.equals("png"))
+                    mimeType = "image/png";
+                else if (ext.equals("html"))
+                    mimeType = "text/html";
+                else if (ext.equals("jpg") || ext.equals("jpeg"))
+                    mimeType = "image/jpeg";
+                else if (ext.equals("txt"))
+                    mimeType = "text/plain";
+            }
 
-            if (objectSize < maxSize) {
-                // Determine Mime Type
-                String[] parts = key.split("\\.");
-                if (parts.length > 1) {
-                    String ext = parts[parts.length - 1].toLowerCase();
-                    if (ext.equals("png"))
-                        mimeType = "image/png";
-                    else if (ext.equals("html"))
-                        mimeType = "text/html";
-                    else if (ext.equals("jpg") || ext.equals("jpeg"))
-                        mimeType = "image/jpeg";
-                    else if (ext.equals("txt"))
-                        mimeType = "text/plain";
-                }
+            // If-Range naming another version means the whole object, as if
+            // there were no Range
+            boolean sameVersion = ifRange == null || ifRange.equals(meta.eTag())
+                    || (meta.lastModified() != null && ifRange.equals(formatHttpDate(meta.lastModified())));
+            long[] range = sameVersion ? parseRange(rangeHeader, objectSize) : null;
+
+            if (range != null && range.length == 0) {
+                context.getLogger().log("Range not satisfiable: " + rangeHeader + " of " + objectSize);
+                statusCode = 416; // Range Not Satisfiable
+                headers.put("Content-Range", "bytes */" + objectSize);
+            } else if (range != null) {
+                // Only the slice is read; If-Match keeps it from a newer upload
+                // that replaced the object after the HEAD
+                GetObjectRequest s3Request = GetObjectRequest.builder()
+                        .bucket(BUCKET_NAME)
+                        .key(key)
+                        .range("bytes=" + range[0] + "-" + range[1])
+                        .ifMatch(meta.eTag())
+                        .build();
 
+                headers.put("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + objectSize);
+                headers.put("Content-Type", mimeType);
+                // Always base64: a slice may cut a UTF-8 character in half
+                return objectResponse(206, headers, s3Client.getObject(s3Request), false); // Partial Content
+            } else if (objectSize < maxSize) {
                 // Get Object
                 GetObjectRequest s3Request = GetObjectRequest.builder()
                         .bucket(BUCKET_NAME)
                         .key(key)
                         .build();
 
-                try (ResponseInputStream<GetObjectResponse> s3Response = s3Client.getObject(s3Request)) {
-                    byte[] buffer = s3Response.readAllBytes();
-
-                    // For HTML/text files return plain body (no base64) so browsers render
-                    // correctly
-                    if (mimeType.startsWith("text/html") || mimeType.startsWith("text/plain")) {
-                        body = new String(buffer, StandardCharsets.UTF_8);
-                        isBase64 = false;
-                    } else {
-                        body = Base64.getEncoder().encodeToString(buffer);
-                        isBase64 = true;
-                    }
-                }
+                headers.put("Content-Type", mimeType);
+                // For HTML/text files return plain body (no base64) so browsers render
+                // correctly
+                boolean text = mimeType.startsWith("text/html") || mimeType.startsWith("text/plain");
+                return objectResponse(200, headers, s3Client.getObject(s3Request), text);
             } else {
                 context.getLogger().log("File too large: " + objectSize);
                 statusCode = 413; // Payload Too Large
+                headers.clear();
+                // Still available in ranges of up to MAX_RANGE_BYTES
+                headers.put("Accept-Ranges", "bytes");
             }
 
         } catch (S3Exception e) {
+            if (e.statusCode() == 304) {
+                context.getLogger().log("Not modified: " + key);
+                return createNotModifiedResponse(key, e);
+            }
             context.getLogger().log("S3 Error: " + e.getMessage());
-            statusCode = 404; // Not Found
+            // 412: replaced between the HEAD and a ranged GET; the client retries
+            statusCode = e.statusCode() == 412 ? 412 : 404; // Not Found
+            headers.clear();
         } catch (IOException e) {
             context.getLogger().log("IO Error: " + e.getMessage());
             statusCode = 500;
+            headers.clear();
         }
 
         APIGatewayProxyResponseEvent response = new APIGatewayProxyResponseEvent();
@@ -238,13 +321,164 @@ public class LambdaGetObject implements RequestHandler<APIGatewayProxyRequestEve
         response.withIsBase64Encoded(isBase64);
 
         // Note: CORS headers are handled by Function URL configuration
-        java.util.Map<String, String> headers = new java.util.HashMap<>();
         headers.put("Content-Type", mimeType);
         response.setHeaders(headers);
 
         return response;
     }
 
+    // Single "bytes=" range as inclusive {first, last}, clamped to the object and
+    // to MAX_RANGE_BYTES (a shorter 206 is allowed; its Content-Range tells the
+    // client where to continue). Returns an empty array when the range starts
+    // past the end, and null for no Range, a malformed one, or several ranges,
+    // which are all answered with the whole object.
+    private static long[] parseRange(String rangeHeader, long objectSize) {
+        if (rangeHeader == null) {
+            return null;
+        }
+        String spec = rangeHeader.trim();
+        if (!spec.startsWith("bytes=") || spec.indexOf(',') >= 0) {
+            return null;
+        }
+        spec = spec.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        long first;
+        long last;
+        try {
+            String from = spec.substring(0, dash).trim();
+            String to = spec.substring(dash + 1).trim();
+            if (from.isEmpty()) {
+                // Suffix range: the last n bytes
+                long suffix = Long.parseLong(to);
+                if (suffix < 0) {
+                    return null;
+                }
+                if (suffix == 0) {
+                    return new long[0];
+                }
+                first = Math.max(0, objectSize - suffix);
+                last = objectSize - 1;
+            } else {
+                first = Long.parseLong(from);
+                last = to.isEmpty() ? objectSize - 1 : Math.min(Long.parseLong(to), objectSize - 1);
+                if (last < first && first < objectSize) {
+                    return null;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (first < 0) {
+            return null;
+        }
+        if (first >= objectSize) {
+            return new long[0];
+        }
+        return new long[] {first, Math.min(last, first + MAX_RANGE_BYTES - 1)};
+    }
+
+    // Response carrying the object from the open S3 stream, read whole: base64,
+    // or plain for text. LambdaGetObjectStreaming overrides this to copy the
+    // stream to its output instead, so the object is never held in memory.
+    APIGatewayProxyResponseEvent objectResponse(int statusCode, java.util.Map<String, String> headers,
+            ResponseInputStream<GetObjectResponse> s3Response, boolean text) throws IOException {
+        byte[] buffer;
+        try (s3Response) {
+            buffer = s3Response.readAllBytes();
+        }
+        APIGatewayProxyResponseEvent response = new APIGatewayProxyResponseEvent();
+        response.setStatusCode(statusCode);
+        response.setBody(text ? new String(buffer, StandardCharsets.UTF_8) : Base64.getEncoder().encodeToString(buffer));
+        response.withIsBase64Encoded(!text);
+        response.setHeaders(headers);
+        return response;
+    }
+
+    // Short-lived GET URL for the key, as a 302 to it or as JSON
+    // {"url", "expiresIn"}. A missing key shows up as S3's 404 on the URL.
+    private APIGatewayProxyResponseEvent createPresignedResponse(String key, boolean redirect, Context context) {
+        GetObjectPresignRequest presignRequest = GetObjectPresignRequest.builder()
+                .signatureDuration(Duration.ofSeconds(PRESIGN_TTL_SECONDS))
+                .getObjectRequest(GetObjectRequest.builder()
+                        .bucket(BUCKET_NAME)
+                        .key(key)
+                        .build())
+                .build();
+        String url = s3Presigner.presignGetObject(presignRequest).url().toString();
+        context.getLogger().log("Presigned " + key + " for " + PRESIGN_TTL_SECONDS + "s");
+
+        java.util.Map<String, String> headers = new java.util.HashMap<>();
+        headers.put("Access-Control-Allow-Origin", "*");
+        headers.put("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
+        headers.put("Access-Control-Allow-Headers", "Content-Type, Authorization");
+        // The URL expires; neither the redirect nor the JSON may be reused
+        headers.put("Cache-Control", "no-store");
+
+        APIGatewayProxyResponseEvent response = new APIGatewayProxyResponseEvent();
+        if (redirect) {
+            headers.put("Location", url);
+            response.setStatusCode(302);
+            response.setBody("");
+        } else {
+            JSONObject body = new JSONObject();
+            body.put("url", url);
+            body.put("expiresIn", PRESIGN_TTL_SECONDS);
+            headers.put("Content-Type", "application/json");
+            response.setStatusCode(200);
+            response.setBody(body.toString());
+        }
+        response.setHeaders(headers);
+        response.setIsBase64Encoded(false);
+        return response;
+    }
+
+    // index.html changes with every deploy, the originals whenever a key is
+    // re-uploaded: browsers may keep both but must revalidate before each use,
+    // which costs a 304 and no body when nothing changed
+    private static void addValidators(java.util.Map<String, String> headers, String key, String eTag,
+            Instant lastModified) {
+        if (eTag != null) {
+            headers.put("ETag", eTag);
+        }
+        if (lastModified != null) {
+            headers.put("Last-Modified", formatHttpDate(lastModified));
+        }
+        headers.put("Cache-Control", key.equals("index.html") ? "no-cache" : "private, no-cache");
+    }
+
+    // S3's 304 carries the current ETag, which the 304 must repeat
+    private APIGatewayProxyResponseEvent createNotModifiedResponse(String key, S3Exception notModified) {
+        String eTag = notModified.awsErrorDetails() == null ? null
+                : notModified.awsErrorDetails().sdkHttpResponse().firstMatchingHeader("ETag").orElse(null);
+        java.util.Map<String, String> headers = new java.util.HashMap<>();
+        addValidators(headers, key, eTag, null);
+        APIGatewayProxyResponseEvent response = new APIGatewayProxyResponseEvent();
+        response.setStatusCode(304);
+        response.setBody("");
+        response.setHeaders(headers);
+        response.setIsBase64Encoded(false);
+        return response;
+    }
+
+    private static String formatHttpDate(Instant instant) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(instant.atZone(ZoneOffset.UTC));
+    }
+
+    // If-Modified-Since value, or null when absent or not an HTTP date
+    private static Instant parseHttpDate(String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
     private APIGatewayProxyResponseEvent listObjects(Context context) {
         try {
             ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
@@ -0,0 +1,46 @@
+package vgu.cloud26;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import vgu.cloud26.common.StreamingResponse;
+
+/**
+ * RequestStreamHandler variant of {@link LambdaGetObject}: the same routing,
+ * token checks and responses, but an object body is base64-encoded from the
+ * S3 stream straight into the function's output instead of being held as a
+ * byte[], a base64 String and a serialized response. Heap use per download is
+ * constant and encoding starts with the first bytes from S3.
+ *
+ * <p>Text objects (index.html) are small and stay plain, as in LambdaGetObject.
+ * The body is still base64: the Java runtime has no Lambda response streaming,
+ * so the output is the proxy JSON and stays under the 6 MB response limit.
+ */
+public class LambdaGetObjectStreaming implements RequestStreamHandler {
+
+    private final LambdaGetObject handler = new LambdaGetObject() {
+        @Override
+        APIGatewayProxyResponseEvent objectResponse(int statusCode, Map<String, String> headers,
+                ResponseInputStream<GetObjectResponse> s3Response, boolean text) throws IOException {
+            if (text) {
+                return super.objectResponse(statusCode, headers, s3Response, text);
+            }
+            return new StreamingResponse(statusCode, headers, s3Response);
+        }
+    };
+
+    @Override
+    public void handleRequest(InputStream input, OutputStream output, Context context) throws IOException {
+        APIGatewayProxyResponseEvent response = handler.handleRequest(StreamingResponse.readRequest(input), context);
+        StreamingResponse.write(response, output);
+    }
+}
@@ -12,6 +12,8 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
 import java.util.Base64;
 import java.util.Properties;
 import javax.crypto.Mac;
@@ -120,6 +122,8 @@ public class LambdaGetPhotosDB
         PreparedStatement st = mySQLClient.prepareStatement("SELECT * FROM Photos");
       
         ResultSet rs = st.executeQuery();
+        // Tables created before the Placeholder column get it on the next insert
+        boolean hasPlaceholder = hasColumn(rs, "Placeholder");
 
         while (rs.next()) {
           JSONObject item = new JSONObject();
@@ -130,6 +134,11 @@ public class LambdaGetPhotosDB
           if (photoEmail != null) {
             item.put("Email", photoEmail);
           }
+          // 4x4 colour grid the gallery paints before the thumbnail arrives
+          String placeholder = hasPlaceholder ? rs.getString("Placeholder") : null;
+          if (placeholder != null) {
+            item.put("Placeholder", placeholder);
+          }
           items.put(item);
         }
 
@@ -172,6 +181,16 @@ public class LambdaGetPhotosDB
     return response;
   }
 
+  private boolean hasColumn(ResultSet rs, String column) throws SQLException {
+    ResultSetMetaData metaData = rs.getMetaData();
+    for (int i = 1; i <= metaData.getColumnCount(); i++) {
+      if (column.equalsIgnoreCase(metaData.getColumnLabel(i))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   // SECURITY: Verify token using hash function (not DB - token is generated from email)
   private boolean verifyTokenWithHash(String email, String token, LambdaLogger logger) {
     if (email == null || email.isEmpty() || token == null || token.isEmpty()) {
@@ -0,0 +1,142 @@
+package vgu.cloud26;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Which gallery page each image is on, with the source ETag it was last seen
+ * with. An image keeps its slot for as long as it exists: a new one takes the
+ * first free slot (the first page with room, else a new last page), a deleted
+ * one frees its slot, and a re-upload only changes its ETag. An upload or
+ * delete therefore changes the atlas of one page, never the pages after it.
+ *
+ * <p>The caller keeps it current from the change journal ({@link #getSeq} is
+ * the last entry applied) and reconciles it against a full listing of the
+ * source bucket when the journal cannot say what changed. Not thread-safe;
+ * each request works on its own copy.
+ */
+final class AtlasIndex {
+
+  private final int capacity;
+  // page -> (key -> source ETag)
+  private final List<Map<String, String>> pages = new ArrayList<>();
+  private final Map<String, Integer> pageOf = new HashMap<>();
+  private long seq = -1;
+  private long reconciledAt;
+
+  AtlasIndex(int capacity) {
+    this.capacity = capacity;
+  }
+
+  // {"seq", "reconciledAt", "pages": [{key: source ETag}, ...]}
+  static AtlasIndex fromJson(JSONObject json, int capacity) {
+    AtlasIndex index = new AtlasIndex(capacity);
+    index.seq = json.optLong("seq", -1);
+    index.reconciledAt = json.optLong("reconciledAt");
+    JSONArray pages = json.optJSONArray("pages");
+    for (int page = 0; pages != null && page < pages.length(); page++) {
+      JSONObject sources = pages.getJSONObject(page);
+      Map<String, String> slots = new LinkedHashMap<>();
+      for (String key : sources.keySet()) {
+        slots.put(key, sources.getString(key));
+        index.pageOf.put(key, page);
+      }
+      index.pages.add(slots);
+    }
+    return index;
+  }
+
+  JSONObject toJson() {
+    JSONArray pagesJson = new JSONArray();
+    for (Map<String, String> slots : pages) {
+      pagesJson.put(new JSONObject(slots));
+    }
+    return new JSONObject()
+        .put("seq", seq)
+        .put("reconciledAt", reconciledAt)
+        .put("pages", pagesJson);
+  }
+
+  long getSeq() {
+    return seq;
+  }
+
+  void setSeq(long seq) {
+    this.seq = seq;
+  }
+
+  long getReconciledAt() {
+    return reconciledAt;
+  }
+
+  // Pages up to the last one holding an image
+  int pageCount() {
+    int count = pages.size();
+    while (count > 0 && pages.get(count - 1).isEmpty()) {
+      count--;
+    }
+    return count;
+  }
+
+  // key -> source ETag of one page; empty past the last
+  Map<String, String> page(int page) {
+    return page < pages.size() ? new LinkedHashMap<>(pages.get(page)) : new LinkedHashMap<>();
+  }
+
+  /**
+   * @return whether anything changed
+   */
+  boolean put(String key, String sourceETag) {
+    Integer page = pageOf.get(key);
+    if (page != null) {
+      return !sourceETag.equals(pages.get(page).put(key, sourceETag));
+    }
+    int free = 0;
+    while (free < pages.size() && pages.get(free).size() >= capacity) {
+      free++;
+    }
+    if (free == pages.size()) {
+      pages.add(new LinkedHashMap<>());
+    }
+    pages.get(free).put(key, sourceETag);
+    pageOf.put(key, free);
+    return true;
+  }
+
+  /**
+   * @return whether the key was on a page
+   */
+  boolean remove(String key) {
+    Integer page = pageOf.remove(key);
+    if (page == null) {
+      return false;
+    }
+    pages.get(page).remove(key);
+    return true;
+  }
+
+  /**
+   * Bring the slots in line with a full listing: keys no longer listed are
+   * removed, listed ones are put, in listing order.
+   *
+   * @return whether anything changed
+   */
+  boolean reconcile(Map<String, String> listing, long now) {
+    boolean changed = false;
+    for (String key : new ArrayList<>(pageOf.keySet())) {
+      if (!listing.containsKey(key)) {
+        changed |= remove(key);
+      }
+    }
+    for (Map.Entry<String, String> image : listing.entrySet()) {
+      changed |= put(image.getKey(), image.getValue());
+    }
+    reconciledAt = now;
+    return changed;
+  }
+}
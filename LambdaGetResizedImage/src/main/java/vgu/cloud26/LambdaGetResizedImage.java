@@ -5,38 +5,144 @@ import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
-import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.imageio.ImageIO;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
 import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.S3Object;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
+import vgu.cloud26.common.ChangeJournal;
+import vgu.cloud26.thumbnail.DecodedImage;
+import vgu.cloud26.thumbnail.DeepZoom;
+import vgu.cloud26.thumbnail.DerivativeMetadata;
+import vgu.cloud26.thumbnail.EncodedImage;
+import vgu.cloud26.thumbnail.FormatClassifier;
+import vgu.cloud26.thumbnail.ImageFormats;
+import vgu.cloud26.thumbnail.ThumbnailAtlas;
+import vgu.cloud26.thumbnail.ThumbnailEngine;
+import vgu.cloud26.thumbnail.Transform;
 
 public class LambdaGetResizedImage
     implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
 
   private static final String RESIZED_BUCKET_NAME = System.getenv("RESIZED_BUCKET_NAME");
   private static final String SOURCE_BUCKET_NAME = System.getenv("SOURCE_BUCKET_NAME");
-  private static final float MAX_DIMENSION = 100;
-  private static final String REGEX = ".*\\.([^\\.]*)";
-  private static final String JPG_TYPE = "jpg";
-  private static final String JPG_MIME = "image/jpeg";
-  private static final String PNG_TYPE = "png";
-  private static final String PNG_MIME = "image/png";
+  private static final int MAX_DIMENSION = 100;
+  private static final Transform DEFAULT_TRANSFORM = Transform.contain(MAX_DIMENSION);
+  // Allow-list that ?w= and ?h= are snapped up to; the same sizes LambdaResize
+  // precomputes, so square contain requests reuse its derivatives
+  private static final List<Integer> DERIVATIVE_SIZES = parseSizes(
+      System.getenv().getOrDefault("DERIVATIVE_SIZES", "100,320,1024"));
+  // Shared across warm invocations and by the concurrent atlas/batch fetches
+  private static final S3Client s3Client = S3Client.builder()
+      .region(Region.AP_SOUTHEAST_2)
+      .build();
+  // Presigned delivery (?delivery=url|redirect): URLs are signed locally and
+  // the client fetches the thumbnail from S3 directly
+  private static final S3Presigner s3Presigner = S3Presigner.builder()
+      .region(Region.AP_SOUTHEAST_2)
+      .build();
+  private static final long PRESIGN_TTL_SECONDS = Long.parseLong(
+      System.getenv().getOrDefault("PRESIGN_TTL_SECONDS", "300"));
+  // Sprite atlas: one gallery page of up to ATLAS_CAPACITY thumbnails in
+  // MAX_DIMENSION cells, cached as atlas/page-<n>.json (served) and
+  // atlas/page-<n>.png (lossless sheet) in the resized bucket. Which page an
+  // image is on is kept in atlas/index.json (see AtlasIndex), reconciled
+  // against a full listing at most every ATLAS_RECONCILE_MS so uploads that
+  // bypass the change journal show up too.
+  private static final int ATLAS_CAPACITY = 50;
+  private static final int ATLAS_COLUMNS = 10;
+  private static final String ATLAS_PREFIX = "atlas/page-";
+  private static final String ATLAS_INDEX_KEY = "atlas/index.json";
+  private static final long ATLAS_RECONCILE_MS = 3_600_000;
+  // Batch mode: at most MAX_BATCH_KEYS keys per call, and a response body
+  // budget below Lambda's 6MB synchronous payload limit (base64 included)
+  private static final int MAX_BATCH_KEYS = 100;
+  private static final int MAX_BATCH_RESPONSE_BYTES = 5 * 1024 * 1024;
+  // Bounded pool for fetching (or resizing on demand) the thumbnails of an
+  // atlas or batch
+  private static final int FETCH_CONCURRENCY = 8;
+  private static final ExecutorService fetchExecutorService = Executors.newFixedThreadPool(FETCH_CONCURRENCY);
+  // Single-flight on-demand resizes: concurrent requests in this container
+  // share one flight per resized key...
+  private static final ConcurrentHashMap<String, Flight> inFlightResizes = new ConcurrentHashMap<>();
+  // ...and a flight that draws a second request is contended: its first
+  // waiter creates lease/<resized key> with a conditional PUT, or, when another
+  // container holds it, polls for that container's output. An uncontended
+  // resize makes no lease calls. A lease older than the Lambda timeout belongs
+  // to a leader that died. Polls run on their own scheduler, never on the
+  // fetch pool.
+  private static final ScheduledExecutorService leasePollExecutorService =
+      Executors.newSingleThreadScheduledExecutor();
+  private static final String LEASE_PREFIX = "lease/";
+  private static final long LEASE_STALE_MS = 30_000;
+  private static final long LEASE_WAIT_MS = 10_000;
+  private static final long LEASE_POLL_MS = 250;
+  // Negative cache of originals known to be missing, so broken links 404
+  // without two S3 round trips. LambdaUploadObjects appends every uploaded key
+  // to the change journal (LambdaDeleteResized every deleted one); it is
+  // re-read at most every UPLOAD_STAMP_CHECK_MS and the keys added since the
+  // last read are forgotten.
+  private static final MissingKeyCache missingOriginals = new MissingKeyCache(10_000, 60_000);
+  private static final long UPLOAD_STAMP_CHECK_MS = 5_000;
+  private static volatile long uploadStampCheckedAt;
+  // The journal as last read: its ETag for the conditional GET, and its
+  // sequence number (-1 before the first read)
+  private static String journalETag;
+  private static long journalSeq = -1;
+  // Hot thumbnails kept in memory (see ThumbnailCache): THUMBNAIL_CACHE_PERCENT
+  // of the function's memory, so created on the first request, which brings
+  // the Context; 0 disables it. The same change journal makes the changed
+  // originals' entries stale.
+  private static final int THUMBNAIL_CACHE_PERCENT = Integer.parseInt(
+      System.getenv().getOrDefault("THUMBNAIL_CACHE_PERCENT", "10"));
+  private static final long THUMBNAIL_CACHE_MAX_AGE_MS = 60_000;
+  private static final long THUMBNAIL_CACHE_LOG_MS = 60_000;
+  private static volatile ThumbnailCache thumbnailCache;
+  private static volatile long thumbnailCacheLoggedAt;
+  // Shared decode -> orient -> scale -> encode engine (SCALING_STRATEGY selects the scaler)
+  private static final ThumbnailEngine engine = ThumbnailEngine.fromEnvironment();
 
   static {
     if (RESIZED_BUCKET_NAME == null) {
@@ -51,6 +157,7 @@ public class LambdaGetResizedImage
   public APIGatewayProxyResponseEvent handleRequest(
       APIGatewayProxyRequestEvent event, Context context) {
     LambdaLogger logger = context.getLogger();
+    createThumbnailCache(context);
 
     try {
       // Handle OPTIONS preflight for CORS
@@ -58,6 +165,30 @@ public class LambdaGetResizedImage
         return createCorsResponse();
       }
 
+      // Sprite atlas of one gallery page: ?format=atlas or ?action=get_atlas
+      if (isAtlasRequest(event)) {
+        JSONObject body = parseRequestBody(event, logger);
+        if (body == null) {
+          return createErrorResponse(400, "Missing atlas request body");
+        }
+        return createAtlasResponse(body, context);
+      }
+
+      // Many thumbnails in one call: ?format=batch or ?action=get_resized_batch
+      if (isBatchRequest(event)) {
+        JSONObject body = parseRequestBody(event, logger);
+        if (body == null) {
+          return createErrorResponse(400, "Missing batch request body");
+        }
+        return createBatchResponse(body, context);
+      }
+
+      // Deep Zoom pyramid of a large original, built by LambdaTile:
+      // ?format=dzi&key=... for the descriptor, ?format=tile&key=...&tile=<level>/<col>_<row>.<ext>
+      if (isDeepZoomRequest(event)) {
+        return createDeepZoomResponse(event.getQueryStringParameters(), logger);
+      }
+
       // 1. Parse the requested filename
       // Supports both POST body {"key":"..."} or Query String ?key=...
       String originalKey = "";
@@ -69,56 +200,13 @@ public class LambdaGetResizedImage
       }
       
       // If not in query string, check body
-      if (originalKey.isEmpty() && event.getBody() != null && !event.getBody().isEmpty() && !event.getBody().equals("{}")) {
-        String requestBody = event.getBody();
-        logger.log("Raw body: " + requestBody);
-        
-        // Decode base64 if needed (check flag or auto-detect)
-        if (event.getIsBase64Encoded() != null && event.getIsBase64Encoded()) {
-          try {
-            byte[] decodedBytes = Base64.getDecoder().decode(requestBody);
-            requestBody = new String(decodedBytes, java.nio.charset.StandardCharsets.UTF_8);
-            logger.log("Decoded base64 body (from flag): " + requestBody);
-          } catch (Exception e) {
-            logger.log("Failed to decode base64: " + e.getMessage());
-          }
-        } else if (!requestBody.startsWith("{")) {
-          // Auto-detect base64: if body doesn't start with '{', try to decode
-          try {
-            byte[] decodedBytes = Base64.getDecoder().decode(requestBody);
-            String decodedBody = new String(decodedBytes, java.nio.charset.StandardCharsets.UTF_8);
-            if (decodedBody.trim().startsWith("{")) {
-              requestBody = decodedBody;
-              logger.log("Auto-decoded base64 body: " + requestBody);
-            }
-          } catch (Exception e) {
-            logger.log("Body is not base64, using as-is");
-          }
-        }
-        
-        // Check if body is wrapped (from LambdaEntryPoint) - unwrap it
-        try {
-          JSONObject wrapper = new JSONObject(requestBody);
-          if (wrapper.has("body")) {
-            requestBody = wrapper.getString("body");
-            logger.log("Unwrapped body from LambdaEntryPoint: " + requestBody);
-          }
-        } catch (Exception wrapperEx) {
-          // Not a wrapper, continue with original body
-          logger.log("Body is not a wrapper, using as-is");
-        }
-        
-        // Try to parse as JSON
-        try {
-          JSONObject body = new JSONObject(requestBody);
-          if (body.has("key")) {
-            originalKey = body.getString("key");
-            logger.log("Found key in body: " + originalKey);
-          } else {
-            logger.log("Body JSON does not contain 'key' field. Available fields: " + body.toString());
-          }
-        } catch (Exception jsonEx) {
-          logger.log("Body is not valid JSON: " + jsonEx.getMessage() + ", body: " + requestBody);
+      if (originalKey.isEmpty()) {
+        JSONObject body = parseRequestBody(event, logger);
+        if (body != null && body.has("key")) {
+          originalKey = body.getString("key");
+          logger.log("Found key in body: " + originalKey);
+        } else if (body != null) {
+          logger.log("Body JSON does not contain 'key' field. Available fields: " + body.toString());
         }
       }
 
@@ -127,44 +215,75 @@ public class LambdaGetResizedImage
         return createErrorResponse(400, "Missing 'key' parameter");
       }
 
-    // 2. Calculate Resized Key
-    String resizedKey = "resized-" + originalKey;
-
-    S3Client s3 = S3Client.builder().region(Region.AP_SOUTHEAST_2).build();
+    // Known-missing original: answer without touching S3
+    if (isKnownMissing(originalKey, logger)) {
+      logger.log("Original known to be missing: " + originalKey);
+      return createErrorResponse(404, "Image not found");
+    }
 
+    // 2. Calculate Resized Key: the fixed thumbnail, or a parameterised
+    // derivative (?w=&h=&fit=&fmt=) under its canonical key
+    Transform transform;
     try {
-      // 3. Try to get resized image from S3
-      GetObjectRequest getRequest = GetObjectRequest.builder().bucket(RESIZED_BUCKET_NAME).key(resizedKey).build();
+      transform = parseTransform(event.getQueryStringParameters());
+    } catch (IllegalArgumentException e) {
+      return createErrorResponse(400, "Invalid transform: " + e.getMessage());
+    }
+    String resizedKey = transform.canonicalKey(originalKey);
 
-      ResponseBytes<GetObjectResponse> objectBytes = s3.getObjectAsBytes(getRequest);
-      byte[] data = objectBytes.asByteArray();
-      String contentType = objectBytes.response().contentType();
+    String delivery = deliveryMode(event, logger);
+    if (delivery != null) {
+      return createPresignedResponse(originalKey, resizedKey, transform, delivery.equals("redirect"), context);
+    }
 
-      // 4. Convert to Base64
-      String base64Data = Base64.getEncoder().encodeToString(data);
+    try {
+      // 3. Serve the resized image from memory when this container has it
+      String ifNoneMatch = header(event, "If-None-Match");
+      Instant ifModifiedSince = parseHttpDate(header(event, "If-Modified-Since"));
+      long now = System.currentTimeMillis();
+      ThumbnailCache.Entry cached = thumbnailCache.get(resizedKey, now);
+      if (cached != null) {
+        return cachedImageResponse(revalidate(resizedKey, cached, now), ifNoneMatch, ifModifiedSince);
+      }
 
-      // 5. Return Image Response with CORS headers
-      Map<String, String> headers = new java.util.HashMap<>();
-      headers.put("Content-Type", contentType != null ? contentType : "image/jpeg");
-      headers.put("Access-Control-Allow-Origin", "*");
-      headers.put("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
-      headers.put("Access-Control-Allow-Headers", "Content-Type, Authorization");
-      return new APIGatewayProxyResponseEvent()
-          .withStatusCode(200)
-          .withHeaders(headers)
-          .withBody(base64Data)
-          .withIsBase64Encoded(true);
+      // Otherwise get it from S3, conditionally on the client's cached copy:
+      // S3 answers 304 without a body when it is still current
+      GetObjectRequest.Builder getRequest = GetObjectRequest.builder().bucket(RESIZED_BUCKET_NAME).key(resizedKey);
+      if (ifNoneMatch != null) {
+        getRequest.ifNoneMatch(ifNoneMatch);
+      }
+      if (ifModifiedSince != null) {
+        getRequest.ifModifiedSince(ifModifiedSince);
+      }
+
+      // 4. Return Image Response (base64, CORS headers) with its validators,
+      // keeping it in memory when small enough
+      ResponseInputStream<GetObjectResponse> object = s3Client.getObject(getRequest.build());
+      Long length = object.response().contentLength();
+      if (length == null || !thumbnailCache.admits(length)) {
+        return storedImageResponse(object);
+      }
+      return cachedImageResponse(admit(originalKey, resizedKey, object), null, null);
 
     } catch (NoSuchKeyException e) {
       // Resized image doesn't exist - try to create it on-demand from original
       logger.log("Resized image not found: " + resizedKey + ", attempting on-demand resize");
       try {
-        return createResizedImageOnDemand(originalKey, resizedKey, s3, logger);
+        ThumbnailCache.Entry resized = resizeSingleFlight(originalKey, resizedKey, transform,
+            context.getMemoryLimitInMB(), logger);
+        thumbnailCache.put(resizedKey, resized, System.currentTimeMillis());
+        return cachedImageResponse(resized, null, null);
       } catch (Exception resizeEx) {
         logger.log("Failed to create resized image on-demand: " + resizeEx.getMessage());
         resizeEx.printStackTrace();
         return createErrorResponse(404, "Image not found");
       }
+    } catch (S3Exception e) {
+      if (e.statusCode() == 304) {
+        return createNotModifiedResponse(e);
+      }
+      logger.log("Error fetching resized image: " + e.getMessage());
+      return createErrorResponse(404, "Image not found");
     } catch (Exception e) {
       logger.log("Error fetching resized image: " + e.getMessage());
       e.printStackTrace();
@@ -177,6 +296,59 @@ public class LambdaGetResizedImage
     }
   }
 
+  // Request body as JSON, base64-decoded (by flag or auto-detected) and
+  // unwrapped from the LambdaEntryPoint envelope; null when absent or invalid
+  private JSONObject parseRequestBody(APIGatewayProxyRequestEvent event, LambdaLogger logger) {
+    if (event.getBody() == null || event.getBody().isEmpty() || event.getBody().equals("{}")) {
+      return null;
+    }
+    String requestBody = event.getBody();
+    logger.log("Raw body: " + requestBody);
+
+    // Decode base64 if needed (check flag or auto-detect)
+    if (event.getIsBase64Encoded() != null && event.getIsBase64Encoded()) {
+      try {
+        byte[] decodedBytes = Base64.getDecoder().decode(requestBody);
+        requestBody = new String(decodedBytes, java.nio.charset.StandardCharsets.UTF_8);
+        logger.log("Decoded base64 body (from flag): " + requestBody);
+      } catch (Exception e) {
+        logger.log("Failed to decode base64: " + e.getMessage());
+      }
+    } else if (!requestBody.startsWith("{")) {
+      // Auto-detect base64: if body doesn't start with '{', try to decode
+      try {
+        byte[] decodedBytes = Base64.getDecoder().decode(requestBody);
+        String decodedBody = new String(decodedBytes, java.nio.charset.StandardCharsets.UTF_8);
+        if (decodedBody.trim().startsWith("{")) {
+          requestBody = decodedBody;
+          logger.log("Auto-decoded base64 body: " + requestBody);
+        }
+      } catch (Exception e) {
+        logger.log("Body is not base64, using as-is");
+      }
+    }
+
+    // Check if body is wrapped (from LambdaEntryPoint) - unwrap it
+    try {
+      JSONObject wrapper = new JSONObject(requestBody);
+      if (wrapper.has("body")) {
+        requestBody = wrapper.getString("body");
+        logger.log("Unwrapped body from LambdaEntryPoint: " + requestBody);
+      }
+    } catch (Exception wrapperEx) {
+      // Not a wrapper, continue with original body
+      logger.log("Body is not a wrapper, using as-is");
+    }
+
+    // Try to parse as JSON
+    try {
+      return new JSONObject(requestBody);
+    } catch (Exception jsonEx) {
+      logger.log("Body is not valid JSON: " + jsonEx.getMessage() + ", body: " + requestBody);
+      return null;
+    }
+  }
+
   private APIGatewayProxyResponseEvent createErrorResponse(int statusCode, String message) {
     Map<String, String> headers = new java.util.HashMap<>();
     headers.put("Content-Type", "text/plain");
@@ -189,6 +361,18 @@ public class LambdaGetResizedImage
         .withBody(message);
   }
 
+  private APIGatewayProxyResponseEvent createJsonResponse(String body) {
+    Map<String, String> headers = new java.util.HashMap<>();
+    headers.put("Content-Type", "application/json");
+    headers.put("Access-Control-Allow-Origin", "*");
+    headers.put("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
+    headers.put("Access-Control-Allow-Headers", "Content-Type, Authorization");
+    return new APIGatewayProxyResponseEvent()
+        .withStatusCode(200)
+        .withHeaders(headers)
+        .withBody(body);
+  }
+
   private APIGatewayProxyResponseEvent createCorsResponse() {
     Map<String, String> headers = new java.util.HashMap<>();
     headers.put("Access-Control-Allow-Origin", "*");
@@ -200,90 +384,1070 @@ public class LambdaGetResizedImage
         .withBody("");
   }
 
-  // On-demand resize: create resized image from original if it doesn't exist
-  private APIGatewayProxyResponseEvent createResizedImageOnDemand(
-      String originalKey, String resizedKey, S3Client s3, LambdaLogger logger) throws Exception {
-    
+  private static final class Flight {
+    final CompletableFuture<ThumbnailCache.Entry> result = new CompletableFuture<>();
+    final AtomicBoolean contended = new AtomicBoolean();
+  }
+
+  // On-demand resize coalesced within the container: the first request for a
+  // key runs it, concurrent ones wait for the same result (or for another
+  // container's, whichever is stored first)
+  private ThumbnailCache.Entry resizeSingleFlight(String originalKey, String resizedKey, Transform transform,
+      int memoryLimitInMB, LambdaLogger logger) throws Exception {
+    Flight flight = new Flight();
+    Flight inFlight = inFlightResizes.putIfAbsent(resizedKey, flight);
+    if (inFlight != null) {
+      logger.log("Joining in-flight resize of " + resizedKey);
+      if (inFlight.contended.compareAndSet(false, true)) {
+        coordinate(originalKey, resizedKey, inFlight, logger);
+      }
+      try {
+        return inFlight.result.join();
+      } catch (CompletionException e) {
+        throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+      }
+    }
+    try {
+      ThumbnailCache.Entry resized = resizeOnDemand(originalKey, resizedKey, transform, memoryLimitInMB, logger);
+      flight.result.complete(resized);
+      return resized;
+    } catch (Exception e) {
+      // Unless a poll already completed the flight with another container's output
+      if (flight.result.completeExceptionally(e)) {
+        throw e;
+      }
+      return flight.result.join();
+    } finally {
+      inFlightResizes.remove(resizedKey, flight);
+    }
+  }
+
+  // First waiter of a flight: take the lease for it, released when the flight
+  // ends. If another container holds the lease it is resizing too; poll for
+  // its output so the waiters get whichever result is stored first. The local
+  // resize goes on either way, so a poll that times out loses nothing.
+  private void coordinate(String originalKey, String resizedKey, Flight flight, LambdaLogger logger) {
+    String leaseKey = LEASE_PREFIX + resizedKey;
+    boolean leader;
+    try {
+      leader = acquireLease(leaseKey, logger);
+    } catch (S3Exception e) {
+      logger.log("Could not acquire lease " + leaseKey + ": " + e.getMessage());
+      return;
+    }
+    if (leader) {
+      flight.result.whenComplete((resized, e) -> releaseLease(leaseKey, logger));
+      return;
+    }
+    logger.log("Resize of " + resizedKey + " is leased by another container, polling for its output");
+    pollLeasedOutput(originalKey, resizedKey, leaseKey, flight.result, System.currentTimeMillis() + LEASE_WAIT_MS,
+        logger);
+  }
+
+  private void pollLeasedOutput(String originalKey, String resizedKey, String leaseKey,
+      CompletableFuture<ThumbnailCache.Entry> result,
+      long deadline, LambdaLogger logger) {
+    leasePollExecutorService.schedule(() -> {
+      if (result.isDone()) {
+        return;
+      }
+      try {
+        result.complete(storedEntry(originalKey, s3Client.getObjectAsBytes(GetObjectRequest.builder()
+            .bucket(RESIZED_BUCKET_NAME)
+            .key(resizedKey)
+            .build())));
+        return;
+      } catch (NoSuchKeyException e) {
+        // Not written yet; a released lease means the other container gave up
+        if (!leaseExists(leaseKey)) {
+          return;
+        }
+      } catch (Exception e) {
+        logger.log("Could not poll leased output " + resizedKey + ": " + e.getMessage());
+        return;
+      }
+      if (System.currentTimeMillis() < deadline) {
+        pollLeasedOutput(originalKey, resizedKey, leaseKey, result, deadline, logger);
+      }
+    }, LEASE_POLL_MS, TimeUnit.MILLISECONDS);
+  }
+
+  // Create the lease only if it does not exist (If-None-Match: *). A stale
+  // lease is deleted and the PUT retried once. Other S3 errors are thrown.
+  private boolean acquireLease(String leaseKey, LambdaLogger logger) {
+    for (int attempt = 0; attempt < 2; attempt++) {
+      try {
+        s3Client.putObject(PutObjectRequest.builder()
+            .bucket(RESIZED_BUCKET_NAME)
+            .key(leaseKey)
+            .ifNoneMatch("*")
+            .build(), RequestBody.empty());
+        return true;
+      } catch (S3Exception e) {
+        // 412: someone holds it; 409: a concurrent conditional PUT won the race
+        if (e.statusCode() != 412 && e.statusCode() != 409) {
+          throw e;
+        }
+      }
+      try {
+        HeadObjectResponse lease = s3Client.headObject(HeadObjectRequest.builder()
+            .bucket(RESIZED_BUCKET_NAME)
+            .key(leaseKey)
+            .build());
+        if (System.currentTimeMillis() - lease.lastModified().toEpochMilli() < LEASE_STALE_MS) {
+          return false;
+        }
+        logger.log("Taking over stale lease " + leaseKey);
+        releaseLease(leaseKey, logger);
+      } catch (NoSuchKeyException e) {
+        // Released in between; try again
+      } catch (S3Exception e) {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  private void releaseLease(String leaseKey, LambdaLogger logger) {
+    try {
+      s3Client.deleteObject(DeleteObjectRequest.builder()
+          .bucket(RESIZED_BUCKET_NAME)
+          .key(leaseKey)
+          .build());
+    } catch (S3Exception e) {
+      // Left behind, it goes stale after LEASE_STALE_MS
+      logger.log("Could not release lease " + leaseKey + ": " + e.getMessage());
+    }
+  }
+
+  private boolean leaseExists(String leaseKey) {
+    try {
+      s3Client.headObject(HeadObjectRequest.builder()
+          .bucket(RESIZED_BUCKET_NAME)
+          .key(leaseKey)
+          .build());
+      return true;
+    } catch (S3Exception e) {
+      return false;
+    }
+  }
+
+  // On-demand resize: create resized image from original if it doesn't exist.
+  // Returned with the validators of the stored object, as the cache holds it.
+  private ThumbnailCache.Entry resizeOnDemand(String originalKey, String resizedKey, Transform transform,
+      int memoryLimitInMB, LambdaLogger logger) throws Exception {
+
     // Infer image type
-    Matcher matcher = Pattern.compile(REGEX).matcher(originalKey);
-    if (!matcher.matches()) {
+    String imageType = ImageFormats.extension(originalKey);
+    if (imageType == null) {
       throw new Exception("Unable to infer image type for key " + originalKey);
     }
-    String imageType = matcher.group(1).toLowerCase();
-    if (!JPG_TYPE.equals(imageType) && !"jpeg".equals(imageType) && !PNG_TYPE.equals(imageType)) {
+    if (!ImageFormats.isSupported(imageType)) {
       throw new Exception("Skipping non-image " + originalKey);
     }
 
     // Get original image from source bucket
     logger.log("Downloading original image from " + SOURCE_BUCKET_NAME + "/" + originalKey);
-    GetObjectRequest getOriginalRequest = GetObjectRequest.builder()
-        .bucket(SOURCE_BUCKET_NAME)
-        .key(originalKey)
-        .build();
-    
-    InputStream originalStream = s3.getObject(getOriginalRequest);
-    BufferedImage srcImage = ImageIO.read(originalStream);
-    if (srcImage == null) {
-      throw new Exception("Could not read image: " + originalKey);
-    }
+    BufferedImage resizedImage;
+    String sourceETag;
+    boolean translucent;
+    try (ResponseInputStream<GetObjectResponse> originalStream = openOriginal(originalKey)) {
+      sourceETag = DerivativeMetadata.normalizeETag(originalStream.response().eTag());
+
+      // Skip-if-current: LambdaResize or LambdaResizeWrapper may have written the
+      // thumbnail (stamped with this ETag) while the request was in flight
+      if (sourceETag != null && isDerivativeCurrent(resizedKey, sourceETag)) {
+        originalStream.abort();
+        logger.log("Resized image became current while resizing on-demand: " + resizedKey);
+        return storedEntry(originalKey, s3Client.getObjectAsBytes(GetObjectRequest.builder()
+            .bucket(RESIZED_BUCKET_NAME)
+            .key(resizedKey)
+            .build()));
+      }
 
-    // Resize image
-    BufferedImage resizedImage = resizeImage(srcImage);
+      DecodedImage decoded = engine.decode(originalStream, transform, memoryLimitInMB);
+      if (decoded == null) {
+        throw new Exception("Could not read image: " + originalKey);
+      }
+      // The result is flattened onto white; only the source knows whether it
+      // was transparent, which keeps the output lossless
+      translucent = FormatClassifier.isTranslucent(decoded.getImage());
+      resizedImage = engine.transform(decoded, transform);
+    }
 
-    // Re-encode
-    String outputFormat = imageType.equals("jpeg") ? "jpg" : imageType;
-    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-    ImageIO.write(resizedImage, outputFormat, outputStream);
+    // Re-encode in the requested format, or else with OUTPUT_FORMAT=auto the
+    // format may differ from the key's extension; the stored and returned
+    // Content-Type follow the bytes
+    EncodedImage encoded = transform.getFormat() != null
+        ? new EncodedImage(engine.encode(resizedImage, transform.getFormat(), transform.getSize()),
+            transform.getFormat())
+        : engine.encodeDerivative(resizedImage, imageType, transform.getSize(), translucent);
+    engine.release(resizedImage);
 
     // Upload to resized bucket
-    logger.log("Uploading resized image to " + RESIZED_BUCKET_NAME + "/" + resizedKey);
-    Map<String, String> metadata = new java.util.HashMap<>();
-    metadata.put("Content-Length", Integer.toString(outputStream.size()));
-    if (JPG_TYPE.equals(imageType) || "jpeg".equals(imageType)) {
-      metadata.put("Content-Type", JPG_MIME);
-    } else if (PNG_TYPE.equals(imageType)) {
-      metadata.put("Content-Type", PNG_MIME);
-    }
+    logger.log("Uploading resized image to " + RESIZED_BUCKET_NAME + "/" + resizedKey
+        + " as " + encoded.getContentType());
+    Map<String, String> metadata = DerivativeMetadata.build(encoded.getData().length,
+        encoded.getExtension(), sourceETag);
 
     PutObjectRequest putRequest = PutObjectRequest.builder()
         .bucket(RESIZED_BUCKET_NAME)
         .key(resizedKey)
         .metadata(metadata)
-        .contentType(metadata.get("Content-Type"))
+        .contentType(encoded.getContentType())
         .build();
 
-    s3.putObject(putRequest, RequestBody.fromBytes(outputStream.toByteArray()));
+    PutObjectResponse putResponse = s3Client.putObject(putRequest, RequestBody.fromBytes(encoded.getData()));
     logger.log("Successfully created resized image: " + resizedKey);
 
-    // Return the resized image
-    String base64Data = Base64.getEncoder().encodeToString(outputStream.toByteArray());
+    // S3 sets Last-Modified when the PUT completes; now is within the second
+    return new ThumbnailCache.Entry(originalKey, encoded.getData(), encoded.getContentType(),
+        putResponse.eTag(), Instant.now());
+  }
+
+  // GET the original, remembering keys that do not exist
+  private ResponseInputStream<GetObjectResponse> openOriginal(String originalKey) {
+    try {
+      return s3Client.getObject(GetObjectRequest.builder()
+          .bucket(SOURCE_BUCKET_NAME)
+          .key(originalKey)
+          .build());
+    } catch (NoSuchKeyException e) {
+      missingOriginals.markMissing(originalKey, System.currentTimeMillis());
+      throw e;
+    }
+  }
+
+  // Whether the original is in the negative cache, after re-reading the
+  // change journal if it is due
+  private boolean isKnownMissing(String originalKey, LambdaLogger logger) {
+    readChanges(logger);
+    return missingOriginals.isMissing(originalKey, System.currentTimeMillis());
+  }
+
+  // One GET of the journal per UPLOAD_STAMP_CHECK_MS at most, conditional on
+  // the last one's ETag so an unchanged journal is a bodiless 304
+  private void readChanges(LambdaLogger logger) {
+    long now = System.currentTimeMillis();
+    if (now - uploadStampCheckedAt < UPLOAD_STAMP_CHECK_MS) {
+      return;
+    }
+    synchronized (LambdaGetResizedImage.class) {
+      if (now - uploadStampCheckedAt < UPLOAD_STAMP_CHECK_MS) {
+        return;
+      }
+      uploadStampCheckedAt = now;
+      if (now - thumbnailCacheLoggedAt >= THUMBNAIL_CACHE_LOG_MS) {
+        thumbnailCacheLoggedAt = now;
+        logger.log("Thumbnail cache: " + thumbnailCache);
+      }
+      GetObjectRequest.Builder request = GetObjectRequest.builder().bucket(RESIZED_BUCKET_NAME).key(ChangeJournal.KEY);
+      if (journalETag != null) {
+        request.ifNoneMatch(journalETag);
+      }
+      JSONObject journal;
+      try {
+        ResponseBytes<GetObjectResponse> object = s3Client.getObjectAsBytes(request.build());
+        journalETag = object.response().eTag();
+        journal = ChangeJournal.parse(object.asUtf8String());
+      } catch (NoSuchKeyException e) {
+        // Nothing uploaded or deleted yet
+        return;
+      } catch (S3Exception e) {
+        // 304: unchanged. Otherwise keep the caches; entries still expire by
+        // TTL or max age
+        if (e.statusCode() != 304) {
+          logger.log("Could not read change journal: " + e.getMessage());
+        }
+        return;
+      }
+
+      Set<String> changed = ChangeJournal.changedSince(journal, journalSeq);
+      if (changed == null) {
+        // First read, a journal started over, or changes rotated out since
+        // the last read: which keys changed is unknown
+        if (missingOriginals.clear()) {
+          logger.log("Change journal skipped ahead, cleared missing-original cache");
+        }
+        if (thumbnailCache.invalidateAll()) {
+          logger.log("Change journal skipped ahead, thumbnail cache entries will be revalidated");
+        }
+      } else {
+        int forgotten = missingOriginals.forget(changed);
+        int invalidated = thumbnailCache.invalidate(changed);
+        if (forgotten > 0 || invalidated > 0) {
+          logger.log("Changed keys " + changed + ", forgot " + forgotten + " missing originals, "
+              + invalidated + " cached thumbnails will be revalidated");
+        }
+      }
+      journalSeq = ChangeJournal.seq(journal);
+    }
+  }
+
+  // The cache is sized from the function's memory, known from the first Context
+  private static void createThumbnailCache(Context context) {
+    if (thumbnailCache != null) {
+      return;
+    }
+    synchronized (LambdaGetResizedImage.class) {
+      if (thumbnailCache == null) {
+        thumbnailCache = new ThumbnailCache(
+            (long) context.getMemoryLimitInMB() * 1024 * 1024 * THUMBNAIL_CACHE_PERCENT / 100,
+            THUMBNAIL_CACHE_MAX_AGE_MS);
+      }
+    }
+  }
+
+  // A cached thumbnail as it is while current; a stale one is revalidated
+  // with a GET conditional on its ETag, which costs a round trip but no body
+  // when it is unchanged, and replaced or dropped when it is not
+  private ThumbnailCache.Entry revalidate(String resizedKey, ThumbnailCache.Entry cached, long now)
+      throws IOException {
+    if (thumbnailCache.isCurrent(cached, now)) {
+      return cached;
+    }
+    GetObjectRequest.Builder request = GetObjectRequest.builder().bucket(RESIZED_BUCKET_NAME).key(resizedKey);
+    if (cached.eTag != null) {
+      request.ifNoneMatch(cached.eTag);
+    }
+    try {
+      return admit(cached.originalKey, resizedKey, s3Client.getObject(request.build()));
+    } catch (NoSuchKeyException e) {
+      thumbnailCache.remove(resizedKey);
+      throw e;
+    } catch (S3Exception e) {
+      if (e.statusCode() != 304) {
+        throw e;
+      }
+      thumbnailCache.confirm(cached, System.currentTimeMillis());
+      return cached;
+    }
+  }
+
+  // Read a stored thumbnail whole and offer it to the cache
+  private ThumbnailCache.Entry admit(String originalKey, String resizedKey,
+      ResponseInputStream<GetObjectResponse> object)
+      throws IOException {
+    ThumbnailCache.Entry entry;
+    try (object) {
+      entry = new ThumbnailCache.Entry(originalKey, object.readAllBytes(), object.response().contentType(),
+          object.response().eTag(), object.response().lastModified());
+    }
+    thumbnailCache.put(resizedKey, entry, System.currentTimeMillis());
+    return entry;
+  }
+
+  // Thumbnail response from memory, or a 304 when the client's validators
+  // match it
+  private APIGatewayProxyResponseEvent cachedImageResponse(ThumbnailCache.Entry entry, String ifNoneMatch,
+      Instant ifModifiedSince) {
+    if (isNotModified(entry, ifNoneMatch, ifModifiedSince)) {
+      return createNotModifiedResponse(entry.eTag);
+    }
+    APIGatewayProxyResponseEvent response = createImageResponse(entry.data, entry.contentType);
+    addValidators(response.getHeaders(), entry.eTag, entry.lastModified);
+    return response;
+  }
+
+  // As S3 evaluates them: If-None-Match, when present, decides alone
+  private static boolean isNotModified(ThumbnailCache.Entry entry, String ifNoneMatch, Instant ifModifiedSince) {
+    if (ifNoneMatch != null) {
+      for (String tag : ifNoneMatch.split(",")) {
+        String trimmed = tag.trim();
+        if (trimmed.startsWith("W/")) {
+          trimmed = trimmed.substring(2);
+        }
+        if (trimmed.equals("*") || trimmed.equals(entry.eTag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    return ifModifiedSince != null && entry.lastModified != null
+        && !entry.lastModified.truncatedTo(ChronoUnit.SECONDS).isAfter(ifModifiedSince);
+  }
+
+  private APIGatewayProxyResponseEvent createImageResponse(byte[] data, String contentType) {
+    String base64Data = Base64.getEncoder().encodeToString(data);
+    return new APIGatewayProxyResponseEvent()
+        .withStatusCode(200)
+        .withHeaders(imageHeaders(contentType))
+        .withBody(base64Data)
+        .withIsBase64Encoded(true);
+  }
+
+  // Stored thumbnail from the open S3 stream, read whole.
+  // LambdaGetResizedImageStreaming overrides this to copy the stream to its
+  // output instead, so the image is never held in memory.
+  APIGatewayProxyResponseEvent storedImageResponse(ResponseInputStream<GetObjectResponse> object)
+      throws IOException {
+    byte[] data;
+    try (object) {
+      data = object.readAllBytes();
+    }
+    APIGatewayProxyResponseEvent response = createImageResponse(data, object.response().contentType());
+    addValidators(response.getHeaders(), object.response().eTag(), object.response().lastModified());
+    return response;
+  }
+
+  static Map<String, String> imageHeaders(String contentType) {
+    Map<String, String> headers = new java.util.HashMap<>();
+    headers.put("Content-Type", contentType != null ? contentType : "image/jpeg");
+    headers.put("Access-Control-Allow-Origin", "*");
+    headers.put("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
+    headers.put("Access-Control-Allow-Headers", "Content-Type, Authorization");
+    return headers;
+  }
+
+  // Transform from ?w=, ?h=, ?fit= and ?fmt=; without any of them, the
+  // fixed thumbnail
+  private Transform parseTransform(Map<String, String> params) {
+    if (params == null || !(params.containsKey("w") || params.containsKey("h")
+        || params.containsKey("fit") || params.containsKey("fmt"))) {
+      return DEFAULT_TRANSFORM;
+    }
+    return Transform.parse(params.get("w"), params.get("h"), params.get("fit"), params.get("fmt"),
+        DERIVATIVE_SIZES);
+  }
+
+  // Parse "100,320,1024" into a list of positive sizes
+  private static List<Integer> parseSizes(String value) {
+    List<Integer> sizes = new ArrayList<>();
+    for (String part : value.split(",")) {
+      String trimmed = part.trim();
+      if (!trimmed.isEmpty()) {
+        int size = Integer.parseInt(trimmed);
+        if (size <= 0) {
+          throw new RuntimeException("Invalid DERIVATIVE_SIZES entry: " + trimmed);
+        }
+        sizes.add(size);
+      }
+    }
+    if (sizes.isEmpty()) {
+      sizes.add(MAX_DIMENSION);
+    }
+    return sizes;
+  }
+
+  private boolean isAtlasRequest(APIGatewayProxyRequestEvent event) {
+    Map<String, String> params = event.getQueryStringParameters();
+    return params != null
+        && ("atlas".equals(params.get("format")) || "get_atlas".equals(params.get("action")));
+  }
+
+  // Atlas of one gallery page, body {"page": n}. Pages come from the atlas
+  // index (images in stable slots, ATLAS_CAPACITY per page), so a shared page
+  // never depends on what one client asked for, and an upload or delete
+  // changes only the page it lands on. The cached atlas records the source
+  // ETag of every cell and is brought up to date against the index: cells of
+  // keys that left the page are blanked, and only keys new to it or
+  // re-uploaded since (ETag differs) are fetched and packed. A steady page
+  // costs three GETs (index, journal, page); a change adds a HEAD per changed
+  // key, and only a reconcile LISTs the whole source bucket. Keys that cannot
+  // be fetched are left out of "cells"; the client falls back to requesting
+  // them in a batch.
+  private APIGatewayProxyResponseEvent createAtlasResponse(JSONObject body, Context context)
+      throws Exception {
+    LambdaLogger logger = context.getLogger();
+    int page = body.optInt("page", -1);
+    if (page < 0) {
+      return createErrorResponse(400, "Atlas request needs 'page'");
+    }
+
+    AtlasIndex index = updateAtlasIndex(context);
+    int pages = index.pageCount();
+    Map<String, String> sources = index.page(page);
+
+    if (sources.isEmpty()) {
+      // Past the last page: nothing to pack or store
+      return createJsonResponse(new JSONObject().put("cells", new JSONObject())
+          .put("page", page).put("pages", pages).toString());
+    }
+
+    String atlasKey = ATLAS_PREFIX + page + ".json";
+    String sheetKey = ATLAS_PREFIX + page + ".png";
+    ResponseBytes<GetObjectResponse> stored = getIfExists(atlasKey);
+    JSONObject cached = stored == null ? null : new JSONObject(stored.asUtf8String());
+    if (cached != null && sources.equals(toMap(cached.optJSONObject("sources")))) {
+      return createJsonResponse(cached.put("page", page).put("pages", pages).toString());
+    }
+
+    ThumbnailAtlas atlas = loadAtlas(cached, sheetKey, logger);
+    Map<String, String> cellSources = cached == null ? new LinkedHashMap<>()
+        : toMap(cached.optJSONObject("sources"));
+    List<String> added = new ArrayList<>();
+    for (String key : new ArrayList<>(atlas.keys())) {
+      if (!sources.containsKey(key) || !sources.get(key).equals(cellSources.get(key))) {
+        atlas.remove(key);
+        cellSources.remove(key);
+      }
+    }
+    for (String key : sources.keySet()) {
+      if (!atlas.contains(key)) {
+        added.add(key);
+      }
+    }
+
+    Map<String, CompletableFuture<StampedThumbnail>> fetches = fetchAll(added, context, this::fetchAtlasThumbnail);
+    for (Map.Entry<String, CompletableFuture<StampedThumbnail>> fetch : fetches.entrySet()) {
+      try {
+        StampedThumbnail thumbnail = fetch.getValue().join();
+        DecodedImage decoded = engine.decode(new ByteArrayInputStream(thumbnail.image.getData()),
+            MAX_DIMENSION, context.getMemoryLimitInMB());
+        if (decoded == null) {
+          logger.log("Atlas: unreadable thumbnail for " + fetch.getKey());
+          continue;
+        }
+        atlas.add(fetch.getKey(), decoded.getImage());
+        engine.release(decoded.getImage());
+        // A thumbnail not yet redone after a re-upload keeps its own stamp, so
+        // the cell is fetched again until it matches the listing
+        cellSources.put(fetch.getKey(),
+            thumbnail.sourceETag != null ? thumbnail.sourceETag : sources.get(fetch.getKey()));
+      } catch (Exception e) {
+        logger.log("Atlas: could not fetch thumbnail for " + fetch.getKey() + ": " + e.getMessage());
+      }
+    }
+
+    JSONObject updated = storeAtlas(atlas, cellSources, atlasKey, sheetKey,
+        stored == null ? null : stored.response().eTag(), logger);
+    logger.log("Updated atlas " + atlasKey + ": " + fetches.size() + " fetched, "
+        + atlas.keys().size() + " total");
+    return createJsonResponse(updated.put("page", page).put("pages", pages).toString());
+  }
+
+  // The atlas index brought up to date. The journal entries since it was
+  // stored are applied with a HEAD of each changed key; a full listing is
+  // used instead when there is no index yet, the journal cannot say what
+  // changed, or the last reconcile is ATLAS_RECONCILE_MS old. Stored back only
+  // if nobody replaced it meanwhile; a loser's changes are redone next time.
+  private AtlasIndex updateAtlasIndex(Context context) throws Exception {
+    LambdaLogger logger = context.getLogger();
+    ResponseBytes<GetObjectResponse> stored = getIfExists(ATLAS_INDEX_KEY);
+    AtlasIndex index = stored == null ? new AtlasIndex(ATLAS_CAPACITY)
+        : AtlasIndex.fromJson(new JSONObject(stored.asUtf8String()), ATLAS_CAPACITY);
+    // Read before the listing or HEADs, so a change racing them is applied
+    // again next time rather than lost
+    JSONObject journal = new ChangeJournal(s3Client, RESIZED_BUCKET_NAME).read();
+    Set<String> changed = ChangeJournal.changedSince(journal, index.getSeq());
+    long now = System.currentTimeMillis();
+    boolean updated;
+    boolean complete = true;
+    if (changed == null || now - index.getReconciledAt() >= ATLAS_RECONCILE_MS) {
+      updated = index.reconcile(listImages(), now);
+      logger.log("Atlas index reconciled against the source listing");
+    } else {
+      updated = false;
+      Map<String, CompletableFuture<String>> heads =
+          fetchAll(new ArrayList<>(changed), context, (key, memoryLimitInMB, log) -> sourceETag(key));
+      for (Map.Entry<String, CompletableFuture<String>> head : heads.entrySet()) {
+        try {
+          String sourceETag = head.getValue().join();
+          updated |= sourceETag == null ? index.remove(head.getKey()) : index.put(head.getKey(), sourceETag);
+        } catch (Exception e) {
+          // Left for the next request, which sees the same journal entries
+          logger.log("Atlas index: could not check " + head.getKey() + ": " + e.getMessage());
+          complete = false;
+        }
+      }
+    }
+    long seq = ChangeJournal.seq(journal);
+    if (!updated && (!complete || seq == index.getSeq())) {
+      return index;
+    }
+    if (complete) {
+      index.setSeq(seq);
+    }
+
+    PutObjectRequest.Builder put = PutObjectRequest.builder()
+        .bucket(RESIZED_BUCKET_NAME)
+        .key(ATLAS_INDEX_KEY)
+        .contentType("application/json");
+    if (stored != null) {
+      put.ifMatch(stored.response().eTag());
+    } else {
+      put.ifNoneMatch("*");
+    }
+    try {
+      s3Client.putObject(put.build(), RequestBody.fromString(index.toJson().toString()));
+    } catch (S3Exception e) {
+      if (e.statusCode() != 412 && e.statusCode() != 409) {
+        throw e;
+      }
+      logger.log("Atlas index was updated concurrently, not stored");
+    }
+    return index;
+  }
+
+  // Every image in the source bucket, in key order, with its source ETag
+  private Map<String, String> listImages() {
+    Map<String, String> images = new LinkedHashMap<>();
+    for (S3Object object : s3Client.listObjectsV2Paginator(ListObjectsV2Request.builder()
+        .bucket(SOURCE_BUCKET_NAME)
+        .build()).contents()) {
+      String extension = ImageFormats.extension(object.key());
+      if (extension != null && ImageFormats.isSupported(extension)) {
+        images.put(object.key(), DerivativeMetadata.normalizeETag(object.eTag()));
+      }
+    }
+    return images;
+  }
+
+  // Source ETag of an original, or null when it no longer exists (or is not
+  // an image the gallery shows)
+  private String sourceETag(String originalKey) {
+    String extension = ImageFormats.extension(originalKey);
+    if (extension == null || !ImageFormats.isSupported(extension)) {
+      return null;
+    }
+    try {
+      return DerivativeMetadata.normalizeETag(s3Client.headObject(HeadObjectRequest.builder()
+          .bucket(SOURCE_BUCKET_NAME)
+          .key(originalKey)
+          .build()).eTag());
+    } catch (NoSuchKeyException e) {
+      return null;
+    }
+  }
+
+  // A page's thumbnail and the source ETag its metadata was stamped with
+  // (null when resized on demand here, or unstamped)
+  private static final class StampedThumbnail {
+    final EncodedImage image;
+    final String sourceETag;
+
+    StampedThumbnail(EncodedImage image, String sourceETag) {
+      this.image = image;
+      this.sourceETag = sourceETag;
+    }
+  }
+
+  private StampedThumbnail fetchAtlasThumbnail(String originalKey, int memoryLimitInMB, LambdaLogger logger)
+      throws Exception {
+    String resizedKey = DEFAULT_TRANSFORM.canonicalKey(originalKey);
+    try {
+      ResponseBytes<GetObjectResponse> object = s3Client.getObjectAsBytes(GetObjectRequest.builder()
+          .bucket(RESIZED_BUCKET_NAME)
+          .key(resizedKey)
+          .build());
+      return new StampedThumbnail(storedImage(object),
+          DerivativeMetadata.normalizeETag(object.response().metadata().get(DerivativeMetadata.SOURCE_ETAG)));
+    } catch (NoSuchKeyException e) {
+      ThumbnailCache.Entry resized =
+          resizeSingleFlight(originalKey, resizedKey, DEFAULT_TRANSFORM, memoryLimitInMB, logger);
+      return new StampedThumbnail(storedImage(resized.data, resized.contentType), null);
+    }
+  }
+
+  private boolean isDeepZoomRequest(APIGatewayProxyRequestEvent event) {
+    Map<String, String> params = event.getQueryStringParameters();
+    return params != null
+        && ("dzi".equals(params.get("format")) || "tile".equals(params.get("format"))
+            || "get_dzi".equals(params.get("action")) || "get_tile".equals(params.get("action")));
+  }
+
+  // Stored pyramid objects are served as they are; nothing is generated on
+  // demand, so an original below TILE_MIN_BYTES, or one still being tiled, is a
+  // 404 and the viewer falls back to the largest derivative.
+  private APIGatewayProxyResponseEvent createDeepZoomResponse(Map<String, String> params,
+      LambdaLogger logger) {
+    String originalKey = params.get("key");
+    if (originalKey == null || originalKey.isEmpty()) {
+      return createErrorResponse(400, "Missing 'key' parameter");
+    }
+    boolean descriptor = "dzi".equals(params.get("format")) || "get_dzi".equals(params.get("action"));
+    String objectKey = descriptor
+        ? DeepZoom.descriptorKey(originalKey)
+        : DeepZoom.tileKey(originalKey, params.get("tile"));
+    if (objectKey == null) {
+      return createErrorResponse(400, "Invalid 'tile', expected <level>/<column>_<row>.<jpg|png>");
+    }
+
+    try {
+      ResponseBytes<GetObjectResponse> object = s3Client.getObjectAsBytes(GetObjectRequest.builder()
+          .bucket(RESIZED_BUCKET_NAME)
+          .key(objectKey)
+          .build());
+      if (!descriptor) {
+        return createImageResponse(object.asByteArray(), object.response().contentType());
+      }
+      Map<String, String> headers = new java.util.HashMap<>();
+      headers.put("Content-Type", "application/xml");
+      headers.put("Access-Control-Allow-Origin", "*");
+      headers.put("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
+      headers.put("Access-Control-Allow-Headers", "Content-Type, Authorization");
+      return new APIGatewayProxyResponseEvent()
+          .withStatusCode(200)
+          .withHeaders(headers)
+          .withBody(object.asUtf8String());
+    } catch (NoSuchKeyException e) {
+      logger.log("Deep Zoom object not found: " + objectKey);
+      return createErrorResponse(404, descriptor ? "No tile pyramid for this image" : "Tile not found");
+    }
+  }
+
+  private boolean isBatchRequest(APIGatewayProxyRequestEvent event) {
+    Map<String, String> params = event.getQueryStringParameters();
+    return params != null
+        && ("batch".equals(params.get("format")) || "get_resized_batch".equals(params.get("action")));
+  }
+
+  // Thumbnails of up to MAX_BATCH_KEYS keys, body {"keys": [...], "cursor": n}.
+  // Responds {"images": {key: {"contentType", "data": base64}}, "missing": [...]}
+  // in key order, plus "cursor" (the index of the first key not included) when
+  // the rest would not fit the payload budget; the client repeats the call with
+  // the same keys and that cursor. Resizes of keys past the cursor still finish
+  // and are stored, so the follow-up call finds them in the resized bucket.
+  private APIGatewayProxyResponseEvent createBatchResponse(JSONObject body, Context context) {
+    LambdaLogger logger = context.getLogger();
+    JSONArray keysJson = body.optJSONArray("keys");
+    int cursor = body.optInt("cursor", 0);
+    if (keysJson == null || keysJson.length() == 0) {
+      return createErrorResponse(400, "Batch request needs 'keys'");
+    }
+    if (keysJson.length() > MAX_BATCH_KEYS) {
+      return createErrorResponse(400, "At most " + MAX_BATCH_KEYS + " keys per batch");
+    }
+    if (cursor < 0 || cursor >= keysJson.length()) {
+      return createErrorResponse(400, "Invalid 'cursor'");
+    }
+    // Each key fetched once, however often it is repeated
+    Set<String> keys = new LinkedHashSet<>();
+    for (int i = cursor; i < keysJson.length(); i++) {
+      keys.add(keysJson.getString(i));
+    }
+
+    Map<String, CompletableFuture<EncodedImage>> fetches = fetchThumbnails(new ArrayList<>(keys), context);
+    JSONObject images = new JSONObject();
+    JSONArray missing = new JSONArray();
+    Set<String> answered = new LinkedHashSet<>();
+    long responseBytes = 0;
+    // The cursor is an index into the keys as sent: walk them, not the
+    // fetches, which hold each repeated key once
+    int next = cursor;
+    for (; next < keysJson.length(); next++) {
+      String key = keysJson.getString(next);
+      if (!answered.add(key)) {
+        continue;
+      }
+      EncodedImage thumbnail;
+      try {
+        thumbnail = fetches.get(key).join();
+      } catch (Exception e) {
+        logger.log("Batch: could not fetch thumbnail for " + key + ": " + e.getMessage());
+        missing.put(key);
+        continue;
+      }
+      String data = Base64.getEncoder().encodeToString(thumbnail.getData());
+      // Key, content type and JSON punctuation on top of the data
+      responseBytes += data.length() + key.length() + 64;
+      if (responseBytes > MAX_BATCH_RESPONSE_BYTES && next > cursor) {
+        break;
+      }
+      images.put(key, new JSONObject()
+          .put("contentType", thumbnail.getContentType())
+          .put("data", data));
+    }
+
+    JSONObject response = new JSONObject().put("images", images).put("missing", missing);
+    if (next < keysJson.length()) {
+      response.put("cursor", next);
+    }
+    logger.log("Batch: " + images.length() + " image(s), " + missing.length() + " missing, from cursor "
+        + cursor + (next < keysJson.length() ? " to " + next : ""));
+    return createJsonResponse(response.toString());
+  }
+
+  // Start fetching the thumbnails of keys concurrently, in key order,
+  // splitting the memory budget between the on-demand resizes that may run
+  // at once
+  private Map<String, CompletableFuture<EncodedImage>> fetchThumbnails(
+      List<String> keys, Context context) {
+    return fetchAll(keys, context, this::fetchThumbnail);
+  }
+
+  private interface KeyFetch<T> {
+    T fetch(String key, int memoryLimitInMB, LambdaLogger logger) throws Exception;
+  }
+
+  private <T> Map<String, CompletableFuture<T>> fetchAll(List<String> keys, Context context, KeyFetch<T> fetch) {
+    LambdaLogger logger = context.getLogger();
+    int memoryLimitInMB = Math.max(1, context.getMemoryLimitInMB() / FETCH_CONCURRENCY);
+    Map<String, CompletableFuture<T>> fetches = new LinkedHashMap<>();
+    for (String key : keys) {
+      fetches.put(key, CompletableFuture.supplyAsync(() -> {
+        try {
+          return fetch.fetch(key, memoryLimitInMB, logger);
+        } catch (Exception e) {
+          throw new CompletionException(e);
+        }
+      }, fetchExecutorService));
+    }
+    return fetches;
+  }
+
+  // Stored thumbnail of a key, resized on demand when there is none yet
+  private EncodedImage fetchThumbnail(String originalKey, int memoryLimitInMB, LambdaLogger logger)
+      throws Exception {
+    if (isKnownMissing(originalKey, logger)) {
+      throw new Exception("Original known to be missing: " + originalKey);
+    }
+    String resizedKey = DEFAULT_TRANSFORM.canonicalKey(originalKey);
+    long now = System.currentTimeMillis();
+    ThumbnailCache.Entry cached = thumbnailCache.get(resizedKey, now);
+    try {
+      ThumbnailCache.Entry entry = cached != null
+          ? revalidate(resizedKey, cached, now)
+          : admit(originalKey, resizedKey, s3Client.getObject(GetObjectRequest.builder()
+              .bucket(RESIZED_BUCKET_NAME)
+              .key(resizedKey)
+              .build()));
+      return storedImage(entry.data, entry.contentType);
+    } catch (NoSuchKeyException e) {
+      ThumbnailCache.Entry resized =
+          resizeSingleFlight(originalKey, resizedKey, DEFAULT_TRANSFORM, memoryLimitInMB, logger);
+      return storedImage(resized.data, resized.contentType);
+    }
+  }
+
+  // A thumbnail read back from the resized bucket; its format follows the
+  // stored Content-Type, which may differ from the key's extension
+  private EncodedImage storedImage(ResponseBytes<GetObjectResponse> object) {
+    return storedImage(object.asByteArray(), object.response().contentType());
+  }
+
+  private static ThumbnailCache.Entry storedEntry(String originalKey, ResponseBytes<GetObjectResponse> object) {
+    return new ThumbnailCache.Entry(originalKey, object.asByteArray(), object.response().contentType(),
+        object.response().eTag(), object.response().lastModified());
+  }
+
+  private EncodedImage storedImage(byte[] data, String contentType) {
+    return new EncodedImage(data,
+        ImageFormats.PNG_MIME.equals(contentType) ? ImageFormats.PNG_TYPE : ImageFormats.JPG_TYPE);
+  }
+
+  // Object bytes, or null when the key does not exist
+  private ResponseBytes<GetObjectResponse> getIfExists(String key) {
+    try {
+      return s3Client.getObjectAsBytes(GetObjectRequest.builder()
+          .bucket(RESIZED_BUCKET_NAME)
+          .key(key)
+          .build());
+    } catch (NoSuchKeyException e) {
+      return null;
+    }
+  }
+
+  // The cached atlas restored from its lossless PNG sheet, or an empty one
+  // when there is none yet, it cannot be read, or the sheet is not the one
+  // the JSON was written with (a concurrent update)
+  private ThumbnailAtlas loadAtlas(JSONObject cached, String sheetKey, LambdaLogger logger) {
+    if (cached != null) {
+      try {
+        ResponseBytes<GetObjectResponse> sheet = getIfExists(sheetKey);
+        if (sheet != null && sheet.response().eTag().equals(cached.optString("sheetETag"))) {
+          Map<String, Rectangle> cells = new LinkedHashMap<>();
+          JSONObject cellsJson = cached.getJSONObject("cells");
+          for (String key : cellsJson.keySet()) {
+            JSONArray cell = cellsJson.getJSONArray(key);
+            cells.put(key, new Rectangle(cell.getInt(0), cell.getInt(1), cell.getInt(2), cell.getInt(3)));
+          }
+          return ThumbnailAtlas.restore(ImageIO.read(new ByteArrayInputStream(sheet.asByteArray())), cells,
+              MAX_DIMENSION, ATLAS_COLUMNS, ATLAS_CAPACITY);
+        }
+        logger.log("Atlas sheet " + sheetKey + " missing or out of step, rebuilding it");
+      } catch (Exception e) {
+        logger.log("Unreadable atlas " + sheetKey + ", rebuilding it: " + e.getMessage());
+      }
+    }
+    return new ThumbnailAtlas(MAX_DIMENSION, ATLAS_COLUMNS, ATLAS_CAPACITY);
+  }
+
+  // Store the sheet as PNG, so cells carried over are never re-compressed,
+  // then the JSON served to clients: {"contentType", "image": base64 JPEG of
+  // the sheet, "cells": {key: [x, y, width, height]}, "sources": {key: source
+  // ETag}, "sheetETag"}. The JSON is written only if nobody replaced it since
+  // it was read; a loser's sheet then no longer matches and the next update
+  // rebuilds from the listing.
+  private JSONObject storeAtlas(ThumbnailAtlas atlas, Map<String, String> cellSources, String atlasKey,
+      String sheetKey, String readETag, LambdaLogger logger) throws Exception {
+    String sheetETag = s3Client.putObject(PutObjectRequest.builder()
+        .bucket(RESIZED_BUCKET_NAME)
+        .key(sheetKey)
+        .contentType(ImageFormats.PNG_MIME)
+        .build(), RequestBody.fromBytes(engine.encode(atlas.getImage(), ImageFormats.PNG_TYPE))).eTag();
+
+    EncodedImage encoded = engine.encodeDerivative(atlas.getImage(), ImageFormats.JPG_TYPE,
+        MAX_DIMENSION, false);
+    JSONObject cells = new JSONObject();
+    for (Map.Entry<String, Rectangle> cell : atlas.getCells().entrySet()) {
+      Rectangle r = cell.getValue();
+      cells.put(cell.getKey(), new JSONArray().put(r.x).put(r.y).put(r.width).put(r.height));
+    }
+    JSONObject json = new JSONObject()
+        .put("contentType", encoded.getContentType())
+        .put("image", Base64.getEncoder().encodeToString(encoded.getData()))
+        .put("cells", cells)
+        .put("sources", new JSONObject(cellSources))
+        .put("sheetETag", sheetETag);
+
+    PutObjectRequest.Builder put = PutObjectRequest.builder()
+        .bucket(RESIZED_BUCKET_NAME)
+        .key(atlasKey)
+        .contentType("application/json");
+    if (readETag != null) {
+      put.ifMatch(readETag);
+    } else {
+      put.ifNoneMatch("*");
+    }
+    try {
+      s3Client.putObject(put.build(), RequestBody.fromString(json.toString()));
+    } catch (S3Exception e) {
+      if (e.statusCode() != 412 && e.statusCode() != 409) {
+        throw e;
+      }
+      logger.log("Atlas " + atlasKey + " was updated concurrently, not stored");
+    }
+    return json;
+  }
+
+  private static Map<String, String> toMap(JSONObject json) {
+    Map<String, String> map = new LinkedHashMap<>();
+    if (json != null) {
+      for (String key : json.keySet()) {
+        map.put(key, json.getString(key));
+      }
+    }
+    return map;
+  }
+
+  // Request header by case-insensitive name; null when absent or empty
+  private static String header(APIGatewayProxyRequestEvent event, String name) {
+    if (event.getHeaders() == null) {
+      return null;
+    }
+    for (Map.Entry<String, String> h : event.getHeaders().entrySet()) {
+      if (name.equalsIgnoreCase(h.getKey()) && h.getValue() != null && !h.getValue().isEmpty()) {
+        return h.getValue();
+      }
+    }
+    return null;
+  }
+
+  // A key's thumbnail changes when the original is re-uploaded, so browsers
+  // keep it but revalidate each use; unchanged, that is a bodiless 304
+  static void addValidators(Map<String, String> headers, String eTag, Instant lastModified) {
+    if (eTag != null) {
+      headers.put("ETag", eTag);
+    }
+    if (lastModified != null) {
+      headers.put("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(lastModified.atZone(ZoneOffset.UTC)));
+    }
+    headers.put("Cache-Control", "no-cache");
+  }
+
+  // S3's 304 carries the current ETag, which the 304 must repeat
+  private APIGatewayProxyResponseEvent createNotModifiedResponse(S3Exception notModified) {
+    return createNotModifiedResponse(notModified.awsErrorDetails() == null ? null
+        : notModified.awsErrorDetails().sdkHttpResponse().firstMatchingHeader("ETag").orElse(null));
+  }
+
+  private APIGatewayProxyResponseEvent createNotModifiedResponse(String eTag) {
+    Map<String, String> headers = new java.util.HashMap<>();
+    headers.put("Access-Control-Allow-Origin", "*");
+    headers.put("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
+    headers.put("Access-Control-Allow-Headers", "Content-Type, Authorization");
+    addValidators(headers, eTag, null);
+    return new APIGatewayProxyResponseEvent()
+        .withStatusCode(304)
+        .withHeaders(headers)
+        .withBody("");
+  }
+
+  // If-Modified-Since value, or null when absent or not an HTTP date
+  private static Instant parseHttpDate(String value) {
+    if (value == null) {
+      return null;
+    }
+    try {
+      return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+    } catch (DateTimeParseException e) {
+      return null;
+    }
+  }
+
+  // "url" or "redirect" from ?delivery= or the body's "delivery"; null for the
+  // inline base64 response
+  private String deliveryMode(APIGatewayProxyRequestEvent event, LambdaLogger logger) {
+    String delivery = event.getQueryStringParameters() != null
+        ? event.getQueryStringParameters().get("delivery") : null;
+    if (delivery == null) {
+      JSONObject body = parseRequestBody(event, logger);
+      delivery = body != null ? body.optString("delivery", null) : null;
+    }
+    return "url".equals(delivery) || "redirect".equals(delivery) ? delivery : null;
+  }
+
+  // Make sure the derivative exists (a HEAD; on a miss, the usual on-demand
+  // resize, which stores it), then answer with a short-lived URL to it: a 302,
+  // or JSON {"url", "expiresIn"}. Only the resize, if any, runs through Lambda.
+  private APIGatewayProxyResponseEvent createPresignedResponse(String originalKey, String resizedKey,
+      Transform transform, boolean redirect, Context context) {
+    LambdaLogger logger = context.getLogger();
+    try {
+      s3Client.headObject(HeadObjectRequest.builder()
+          .bucket(RESIZED_BUCKET_NAME)
+          .key(resizedKey)
+          .build());
+    } catch (NoSuchKeyException e) {
+      logger.log("Resized image not found: " + resizedKey + ", attempting on-demand resize");
+      try {
+        resizeSingleFlight(originalKey, resizedKey, transform, context.getMemoryLimitInMB(), logger);
+      } catch (Exception resizeEx) {
+        logger.log("Failed to create resized image on-demand: " + resizeEx.getMessage());
+        return createErrorResponse(404, "Image not found");
+      }
+    }
+
+    String url = s3Presigner.presignGetObject(GetObjectPresignRequest.builder()
+        .signatureDuration(Duration.ofSeconds(PRESIGN_TTL_SECONDS))
+        .getObjectRequest(GetObjectRequest.builder()
+            .bucket(RESIZED_BUCKET_NAME)
+            .key(resizedKey)
+            .build())
+        .build()).url().toString();
+
     Map<String, String> headers = new java.util.HashMap<>();
-    headers.put("Content-Type", metadata.get("Content-Type"));
     headers.put("Access-Control-Allow-Origin", "*");
     headers.put("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
     headers.put("Access-Control-Allow-Headers", "Content-Type, Authorization");
-    
+    // The URL expires; neither the redirect nor the JSON may be reused
+    headers.put("Cache-Control", "no-store");
+    if (redirect) {
+      headers.put("Location", url);
+      return new APIGatewayProxyResponseEvent()
+          .withStatusCode(302)
+          .withHeaders(headers)
+          .withBody("");
+    }
+    headers.put("Content-Type", "application/json");
     return new APIGatewayProxyResponseEvent()
         .withStatusCode(200)
         .withHeaders(headers)
-        .withBody(base64Data)
-        .withIsBase64Encoded(true);
+        .withBody(new JSONObject().put("url", url).put("expiresIn", PRESIGN_TTL_SECONDS).toString());
   }
 
-  private BufferedImage resizeImage(BufferedImage srcImage) {
-    int srcHeight = srcImage.getHeight();
-    int srcWidth = srcImage.getWidth();
-    float scalingFactor = Math.min(MAX_DIMENSION / srcWidth, MAX_DIMENSION / srcHeight);
-    int width = (int) (scalingFactor * srcWidth);
-    int height = (int) (scalingFactor * srcHeight);
-
-    BufferedImage resizedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-    Graphics2D graphics = resizedImage.createGraphics();
-    graphics.setPaint(Color.white);
-    graphics.fillRect(0, 0, width, height);
-    graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-    graphics.drawImage(srcImage, 0, 0, width, height, null);
-    graphics.dispose();
-    return resizedImage;
+  // HEAD the thumbnail and compare its source-etag stamp; missing objects and
+  // unstamped legacy thumbnails count as stale
+  private boolean isDerivativeCurrent(String resizedKey, String sourceETag) {
+    try {
+      HeadObjectResponse head = s3Client.headObject(HeadObjectRequest.builder()
+          .bucket(RESIZED_BUCKET_NAME)
+          .key(resizedKey)
+          .build());
+      return sourceETag.equals(head.metadata().get(DerivativeMetadata.SOURCE_ETAG));
+    } catch (S3Exception e) {
+      return false;
+    }
   }
 }
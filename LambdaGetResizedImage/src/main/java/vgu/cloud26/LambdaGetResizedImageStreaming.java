@@ -0,0 +1,42 @@
+package vgu.cloud26;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import vgu.cloud26.common.StreamingResponse;
+
+/**
+ * RequestStreamHandler variant of {@link LambdaGetResizedImage}: the same
+ * routing, conditional GETs and on-demand resizing, but a stored thumbnail is
+ * base64-encoded from the S3 stream straight into the function's output
+ * instead of being held as a byte[], a base64 String and a serialized
+ * response. Thumbnails resized on a miss are already in memory and are
+ * written as they are.
+ *
+ * <p>The body is still base64: the Java runtime has no Lambda response
+ * streaming, so the output is the proxy JSON and stays under the 6 MB
+ * response limit.
+ */
+public class LambdaGetResizedImageStreaming implements RequestStreamHandler {
+
+  private final LambdaGetResizedImage handler = new LambdaGetResizedImage() {
+    @Override
+    APIGatewayProxyResponseEvent storedImageResponse(ResponseInputStream<GetObjectResponse> object) {
+      Map<String, String> headers = imageHeaders(object.response().contentType());
+      addValidators(headers, object.response().eTag(), object.response().lastModified());
+      return new StreamingResponse(200, headers, object);
+    }
+  };
+
+  @Override
+  public void handleRequest(InputStream input, OutputStream output, Context context) throws IOException {
+    APIGatewayProxyResponseEvent response = handler.handleRequest(StreamingResponse.readRequest(input), context);
+    StreamingResponse.write(response, output);
+  }
+}
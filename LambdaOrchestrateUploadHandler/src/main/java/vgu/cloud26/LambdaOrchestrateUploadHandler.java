@@ -5,6 +5,8 @@ import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
@@ -12,15 +14,20 @@ import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import software.amazon.awssdk.core.SdkBytes;
 import software.amazon.awssdk.regions.Region;
@@ -36,6 +43,11 @@ import software.amazon.awssdk.services.ssm.SsmClient;
 import software.amazon.awssdk.services.ssm.model.GetParameterRequest;
 import software.amazon.awssdk.services.ssm.model.GetParameterResponse;
 import software.amazon.awssdk.services.ssm.model.SsmException;
+import vgu.cloud26.thumbnail.ImageFormats;
+import vgu.cloud26.thumbnail.ImageSniffer;
+import vgu.cloud26.thumbnail.PerceptualHash;
+import vgu.cloud26.thumbnail.Placeholder;
+import vgu.cloud26.thumbnail.ThumbnailEngine;
 
 public class LambdaOrchestrateUploadHandler
     implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
@@ -44,6 +56,11 @@ public class LambdaOrchestrateUploadHandler
   private final SfnClient sfnClient;
   private final SsmClient ssmClient;
   private final ExecutorService executorService;
+  private final ThumbnailEngine engine;
+  // Perceptual hashes of the Photos rows up to lastIndexedId; loaded on the
+  // first upload of a container, then topped up from newer rows
+  private final BkTree duplicateIndex;
+  private long lastIndexedId;
 
   // Get function names from environment variables (UPLOAD-ONLY ORCHESTRATOR)
   // This Lambda is responsible **only** for the upload workflow:
@@ -57,11 +74,36 @@ public class LambdaOrchestrateUploadHandler
       .getOrDefault("RESIZE_WRAPPER_FUNC_NAME", "LambdaResizeWrapper");
   private static final String STATE_MACHINE_ARN = System.getenv().getOrDefault("STATE_MACHINE_ARN", "");
 
+  // Early rejection limits: the request body is forwarded to every worker, so it
+  // must fit the 6 MB synchronous invoke payload; the pixel count guards the
+  // resize against decompression bombs (a few KB of PNG can claim gigapixels)
+  private static final int MAX_PAYLOAD_BYTES = Integer.parseInt(System.getenv()
+      .getOrDefault("MAX_PAYLOAD_BYTES", Integer.toString(6 * 1024 * 1024)));
+  private static final long MAX_IMAGE_PIXELS = Long.parseLong(System.getenv()
+      .getOrDefault("MAX_IMAGE_PIXELS", "100000000"));
+  // Base64 characters decoded for sniffing (a multiple of 4); covers the EXIF
+  // and ICC segments in front of a JPEG frame header
+  private static final int SNIFF_PREFIX_CHARS = 256 * 1024;
+
+  // Near-duplicate check: uploads within DUPLICATE_MAX_DISTANCE bits of a stored
+  // photo's perceptual hash are listed under "duplicates" in the result, or, with
+  // DUPLICATE_MODE=reject, refused with 409 unless the body sets "allowDuplicate"
+  private static final int DUPLICATE_MAX_DISTANCE = Integer.parseInt(System.getenv()
+      .getOrDefault("DUPLICATE_MAX_DISTANCE", "4"));
+  private static final String DUPLICATE_MODE = System.getenv().getOrDefault("DUPLICATE_MODE", "flag");
+  private static final String RDS_INSTANCE_HOSTNAME = System.getenv("RDS_HOSTNAME");
+  private static final String RDS_INSTANCE_PORT_STR = System.getenv("RDS_PORT");
+  private static final String DB_USER = System.getenv("DB_USER");
+  private static final String DB_PASSWORD = System.getenv("DB_PASSWORD");
+  private static final String DB_NAME = System.getenv("DB_NAME");
+
   public LambdaOrchestrateUploadHandler() {
     this.lambdaClient = LambdaClient.builder().region(Region.AP_SOUTHEAST_2).build();
     this.sfnClient = SfnClient.builder().region(Region.AP_SOUTHEAST_2).build();
     this.ssmClient = SsmClient.builder().region(Region.AP_SOUTHEAST_2).build();
     this.executorService = Executors.newFixedThreadPool(4); // For up to 4 concurrent activities
+    this.engine = ThumbnailEngine.fromEnvironment();
+    this.duplicateIndex = new BkTree();
   }
 
   // Helper to call a worker Lambda
@@ -133,7 +175,8 @@ public class LambdaOrchestrateUploadHandler
       logger.log("Original request body length: " + (userRequestBody != null ? userRequestBody.length() : 0));
 
       // Handle POST operation (Upload workflow)
-      APIGatewayProxyResponseEvent response = handleUploadOperation(userRequestBody, logger);
+      APIGatewayProxyResponseEvent response = handleUploadOperation(userRequestBody,
+          context.getMemoryLimitInMB(), logger);
       // Ensure CORS headers are present
       if (response.getHeaders() == null) {
         response.setHeaders(new HashMap<>());
@@ -155,7 +198,9 @@ public class LambdaOrchestrateUploadHandler
   }
 
   // Handle UPLOAD workflow: Use Step Functions instead of direct Lambda calls
-  private APIGatewayProxyResponseEvent handleUploadOperation(String userRequestBody, LambdaLogger logger) {
+  private APIGatewayProxyResponseEvent handleUploadOperation(String userRequestBody, int memoryLimitInMB,
+      LambdaLogger logger) {
+    JSONArray duplicates = new JSONArray();
     try {
       // Decode base64 if needed
       if (userRequestBody != null && !userRequestBody.startsWith("{")) {
@@ -190,9 +235,30 @@ public class LambdaOrchestrateUploadHandler
 
       logger.log("Token verified, email from token: " + email);
 
+      // Reject before the DB insert, the original upload and the resize run
+      APIGatewayProxyResponseEvent rejection = validateImagePayload(userRequestBody, logger);
+      if (rejection != null) {
+        return rejection;
+      }
+
+      JSONObject uploadJSON = new JSONObject(userRequestBody);
+      Long hash = addImageSignature(uploadJSON, memoryLimitInMB, logger);
+      if (hash != null) {
+        // Forwarded to every worker; LambdaAddPhotoDB stores the signature as is
+        userRequestBody = uploadJSON.toString();
+      }
+      duplicates = findDuplicates(hash, logger);
+      if (duplicates.length() > 0 && "reject".equalsIgnoreCase(DUPLICATE_MODE)
+          && !uploadJSON.optBoolean("allowDuplicate", false)) {
+        JSONObject conflict = new JSONObject();
+        conflict.put("error", uploadJSON.optString("key") + " looks like a photo that is already stored");
+        conflict.put("duplicates", duplicates);
+        return createResultsResponse(409, conflict);
+      }
+
       if (STATE_MACHINE_ARN == null || STATE_MACHINE_ARN.isEmpty()) {
         logger.log("STATE_MACHINE_ARN not configured, falling back to direct Lambda calls");
-        return handleUploadOperationDirect(userRequestBody, logger);
+        return handleUploadOperationDirect(userRequestBody, duplicates, logger);
       }
 
       logger.log("Starting Step Functions execution for upload workflow...");
@@ -224,6 +290,9 @@ public class LambdaOrchestrateUploadHandler
         results.put("status", "SUCCEEDED");
         results.put("output", output);
         results.put("message", "Upload workflow completed successfully via Step Functions");
+        if (duplicates.length() > 0) {
+          results.put("duplicates", duplicates);
+        }
 
         Map<String, String> headers = new HashMap<>();
         headers.put("Content-Type", "application/json");
@@ -244,14 +313,197 @@ public class LambdaOrchestrateUploadHandler
       logger.log("Error in Step Functions upload: " + e.getMessage());
       // Fallback to direct Lambda calls if Step Functions fails
       logger.log("Falling back to direct Lambda calls...");
-      return handleUploadOperationDirect(userRequestBody, logger);
+      return handleUploadOperationDirect(userRequestBody, duplicates, logger);
+    }
+  }
+
+  // Sniff the uploaded content from its magic bytes and header. Returns the error
+  // response for payloads the workers would only fail on after the row and the
+  // original were written, or null to go ahead. Files that neither claim to be
+  // nor look like an image are not this check's business.
+  private APIGatewayProxyResponseEvent validateImagePayload(String userRequestBody, LambdaLogger logger) {
+    if (userRequestBody.length() > MAX_PAYLOAD_BYTES) {
+      logger.log("Rejecting upload: request body of " + userRequestBody.length() + " bytes exceeds "
+          + MAX_PAYLOAD_BYTES);
+      return createErrorResponse(413, "Upload too large: limit is " + MAX_PAYLOAD_BYTES + " bytes");
+    }
+    JSONObject bodyJSON = new JSONObject(userRequestBody);
+    String key = bodyJSON.optString("key", "");
+    String content = bodyJSON.optString("content", "");
+    if (key.isEmpty() || content.isEmpty()) {
+      // The workflow reports missing fields itself
+      return null;
+    }
+
+    ImageSniffer.Format declared = ImageSniffer.Format.forExtension(ImageFormats.extension(key));
+    ImageSniffer.Result sniffed;
+    try {
+      boolean partial = content.length() > SNIFF_PREFIX_CHARS;
+      byte[] header = Base64.getDecoder().decode(partial ? content.substring(0, SNIFF_PREFIX_CHARS) : content);
+      sniffed = ImageSniffer.sniff(header);
+      if (partial && sniffed != null && !sniffed.hasDimensions()) {
+        // Frame header further in than the prefix; decode it all once
+        sniffed = ImageSniffer.sniff(Base64.getDecoder().decode(content));
+      }
+    } catch (IllegalArgumentException e) {
+      logger.log("Rejecting upload of " + key + ": content is not valid base64");
+      return createErrorResponse(400, "Content of " + key + " is not valid base64");
+    }
+
+    if (sniffed == null) {
+      if (declared == null) {
+        return null;
+      }
+      logger.log("Rejecting upload of " + key + ": content is not a " + declared + " image");
+      return createErrorResponse(415, key + " is not a valid " + declared + " image");
     }
+    if (declared != null && declared != sniffed.getFormat()) {
+      logger.log("Rejecting upload of " + key + ": named " + declared + " but content is " + sniffed.getFormat());
+      return createErrorResponse(415, key + " is named as " + declared + " but contains " + sniffed.getFormat());
+    }
+    if (!sniffed.hasDimensions()) {
+      logger.log("Rejecting upload of " + key + ": corrupt " + sniffed.getFormat() + " header");
+      return createErrorResponse(415, key + " has a corrupt or truncated " + sniffed.getFormat() + " header");
+    }
+    if (sniffed.getPixels() > MAX_IMAGE_PIXELS) {
+      logger.log("Rejecting upload of " + key + ": " + sniffed.getWidth() + "x" + sniffed.getHeight()
+          + " exceeds " + MAX_IMAGE_PIXELS + " pixels");
+      return createErrorResponse(413, key + " is " + sniffed.getWidth() + "x" + sniffed.getHeight()
+          + "; the limit is " + MAX_IMAGE_PIXELS + " pixels");
+    }
+    logger.log("Sniffed " + key + " as " + sniffed.getFormat() + " " + sniffed.getWidth() + "x"
+        + sniffed.getHeight());
+    return null;
+  }
+
+  // Perceptual hash and placeholder from one small decode of the upload, added
+  // to its body as "perceptualHash" and "placeholder" so LambdaAddPhotoDB does
+  // not decode it again. Returns the hash, or null (body unchanged) when the
+  // content is missing or not a decodable image.
+  private Long addImageSignature(JSONObject uploadJSON, int memoryLimitInMB, LambdaLogger logger) {
+    String content = uploadJSON.optString("content", "");
+    if (content.isEmpty()) {
+      return null;
+    }
+    try {
+      BufferedImage small = engine.thumbnail(new ByteArrayInputStream(Base64.getDecoder().decode(content)),
+          PerceptualHash.SOURCE_DIMENSION, memoryLimitInMB);
+      if (small == null) {
+        return null;
+      }
+      long hash = PerceptualHash.dHash(small);
+      uploadJSON.put("perceptualHash", hash);
+      uploadJSON.put("placeholder", Placeholder.colorGrid(small));
+      engine.release(small);
+      return hash;
+    } catch (Exception e) {
+      logger.log("No perceptual hash for upload: " + e.getMessage());
+      return null;
+    }
+  }
+
+  // Stored photos whose perceptual hash is within DUPLICATE_MAX_DISTANCE of the
+  // upload's, nearest first, as [{"key", "distance"}]. LambdaAddPhotoDB stores
+  // the hashes. Best effort: no hash or an unreachable database only means no
+  // check.
+  private JSONArray findDuplicates(Long hash, LambdaLogger logger) {
+    JSONArray duplicates = new JSONArray();
+    if (hash == null || RDS_INSTANCE_HOSTNAME == null) {
+      return duplicates;
+    }
+    try {
+      refreshDuplicateIndex(logger);
+
+      long start = System.nanoTime();
+      List<BkTree.Match> matches = duplicateIndex.search(hash, DUPLICATE_MAX_DISTANCE);
+      logger.log("Duplicate lookup over " + duplicateIndex.size() + " photos took "
+          + (System.nanoTime() - start) / 1000 + " us, " + matches.size() + " candidates");
+      if (matches.isEmpty()) {
+        return duplicates;
+      }
+
+      // The index is only ever added to; drop candidates deleted since, or
+      // whose key now belongs to a different photo
+      Map<String, Set<Long>> stored = storedHashes(matches);
+      for (BkTree.Match match : matches) {
+        if (stored.getOrDefault(match.key, Set.of()).contains(match.hash)) {
+          duplicates.put(new JSONObject().put("key", match.key).put("distance", match.distance));
+        } else {
+          duplicateIndex.remove(match.hash, match.key);
+        }
+      }
+      logger.log("Near-duplicates: " + duplicates);
+    } catch (Exception e) {
+      logger.log("Duplicate check skipped: " + e.getMessage());
+    }
+    return duplicates;
+  }
+
+  // Index the rows inserted since the last call: everything on a cold start,
+  // then a primary-key range scan of the few new rows
+  private synchronized void refreshDuplicateIndex(LambdaLogger logger) throws Exception {
+    int added = 0;
+    try (Connection connection = DriverManager.getConnection(jdbcUrl(), setMySqlConnectionProperties());
+        PreparedStatement st = connection.prepareStatement(
+            "SELECT ID, S3Key, PerceptualHash FROM Photos WHERE PerceptualHash IS NOT NULL AND ID > ? ORDER BY ID")) {
+      st.setLong(1, lastIndexedId);
+      try (ResultSet rs = st.executeQuery()) {
+        while (rs.next()) {
+          duplicateIndex.add(rs.getLong("PerceptualHash"), rs.getString("S3Key"));
+          lastIndexedId = rs.getLong("ID");
+          added++;
+        }
+      }
+    }
+    if (added > 0) {
+      logger.log("Indexed " + added + " perceptual hashes up to row " + lastIndexedId);
+    }
+  }
+
+  // Key -> perceptual hashes of the rows currently stored under the
+  // candidates' keys
+  private Map<String, Set<Long>> storedHashes(List<BkTree.Match> matches) throws Exception {
+    StringBuilder placeholders = new StringBuilder();
+    for (int i = 0; i < matches.size(); i++) {
+      placeholders.append(i == 0 ? "?" : ",?");
+    }
+    Map<String, Set<Long>> stored = new HashMap<>();
+    try (Connection connection = DriverManager.getConnection(jdbcUrl(), setMySqlConnectionProperties());
+        PreparedStatement st = connection.prepareStatement(
+            "SELECT S3Key, PerceptualHash FROM Photos WHERE PerceptualHash IS NOT NULL AND S3Key IN ("
+                + placeholders + ")")) {
+      for (int i = 0; i < matches.size(); i++) {
+        st.setString(i + 1, matches.get(i).key);
+      }
+      try (ResultSet rs = st.executeQuery()) {
+        while (rs.next()) {
+          stored.computeIfAbsent(rs.getString("S3Key"), key -> new HashSet<>()).add(rs.getLong("PerceptualHash"));
+        }
+      }
+    }
+    return stored;
+  }
+
+  private static String jdbcUrl() {
+    return "jdbc:mysql://" + RDS_INSTANCE_HOSTNAME + ":" + RDS_INSTANCE_PORT_STR + "/" + DB_NAME;
+  }
+
+  private static Properties setMySqlConnectionProperties() {
+    Properties mysqlConnectionProperties = new Properties();
+    mysqlConnectionProperties.setProperty("useSSL", "true");
+    mysqlConnectionProperties.setProperty("user", DB_USER);
+    mysqlConnectionProperties.setProperty("password", DB_PASSWORD);
+    return mysqlConnectionProperties;
   }
 
   // Fallback: Direct Lambda calls with sequential workflow
   // Workflow: key -> insert row -> {key, bucket, context} -> Upload Object -> catch error -> [Resized Context -> {key, resized content, catch error} -> Upload (key, resized content)]
-  private APIGatewayProxyResponseEvent handleUploadOperationDirect(String userRequestBody, LambdaLogger logger) {
+  private APIGatewayProxyResponseEvent handleUploadOperationDirect(String userRequestBody, JSONArray duplicates,
+      LambdaLogger logger) {
     JSONObject results = new JSONObject();
+    if (duplicates.length() > 0) {
+      results.put("duplicates", duplicates);
+    }
     
     try {
       // Decode base64 if needed
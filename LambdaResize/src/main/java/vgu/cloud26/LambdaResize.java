@@ -1,18 +1,15 @@
 package vgu.cloud26;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import javax.imageio.ImageIO;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
@@ -20,12 +17,26 @@ import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.S3Event;
 import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3EventNotificationRecord;
 
+import org.json.JSONArray;
+import org.json.JSONObject;
+
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import vgu.cloud26.thumbnail.DecodedImage;
+import vgu.cloud26.thumbnail.DeepZoom;
+import vgu.cloud26.thumbnail.DerivativeMetadata;
+import vgu.cloud26.thumbnail.EncodedImage;
+import vgu.cloud26.thumbnail.FormatClassifier;
+import vgu.cloud26.thumbnail.ImageFormats;
+import vgu.cloud26.thumbnail.ThumbnailEngine;
 
 public class LambdaResize implements RequestHandler<S3Event, String> {
 
@@ -43,71 +54,235 @@ public class LambdaResize implements RequestHandler<S3Event, String> {
         }
     }
 
+    // 3. CONFIGURATION: Derivative sizes (longest edge in px), e.g. "100,320,1024".
+    // The 100px thumbnail keeps the legacy "resized-<key>" name that
+    // LambdaGetResizedImage and LambdaDeleteResized look up; every other size is
+    // stored as "resized/<size>/<key>".
     private static final float MAX_DIMENSION = 100;
-    private final String REGEX = ".*\\.([^\\.]*)";
-    private final String JPG_TYPE = "jpg";
-    private final String JPG_MIME = "image/jpeg";
-    private final String PNG_TYPE = "png";
-    private final String PNG_MIME = "image/png";
+    private static final List<Integer> DERIVATIVE_SIZES = parseSizes(
+            System.getenv().getOrDefault("DERIVATIVE_SIZES", "100,320,1024"));
+
+    // 4. OPTIMIZATION: Bounded pool for the records of one S3 notification, and a
+    // separate shared pool for encoding and uploading derivatives in parallel
+    private static final int RECORD_CONCURRENCY = Integer.parseInt(
+            System.getenv().getOrDefault("RECORD_CONCURRENCY", "4"));
+    private static final ExecutorService recordExecutorService = Executors.newFixedThreadPool(RECORD_CONCURRENCY);
+    private static final ExecutorService executorService = Executors.newFixedThreadPool(4);
+
+    // 5. Shared decode -> orient -> scale -> encode engine (SCALING_STRATEGY selects the scaler)
+    private static final ThumbnailEngine engine = ThumbnailEngine.fromEnvironment();
+
+    // 6. Originals of at least TILE_MIN_BYTES, too large to view as one image,
+    // are queued for their Deep Zoom tile pyramid: LambdaTile builds it, with
+    // its own memory and timeout, off the thumbnail path
+    private static final long TILE_MIN_BYTES = Long.parseLong(
+            System.getenv().getOrDefault("TILE_MIN_BYTES", String.valueOf(10 * 1024 * 1024)));
 
     @Override
     public String handleRequest(S3Event s3event, Context context) {
         LambdaLogger logger = context.getLogger();
+        List<S3EventNotificationRecord> records = s3event.getRecords();
+        logger.log("Received " + records.size() + " record(s)");
 
-        try {
-            S3EventNotificationRecord record = s3event.getRecords().get(0);
+        // Fan out every record of the notification on the bounded record pool
+        List<CompletableFuture<JSONObject>> futures = new ArrayList<>();
+        for (S3EventNotificationRecord record : records) {
+            futures.add(CompletableFuture.supplyAsync(
+                    () -> processRecord(record, context), recordExecutorService));
+        }
+
+        JSONArray results = new JSONArray();
+        int resized = 0;
+        int skipped = 0;
+        int failed = 0;
+        for (CompletableFuture<JSONObject> future : futures) {
+            JSONObject result = future.join();
+            results.put(result);
+            String status = result.getString("status");
+            if ("resized".equals(status)) {
+                resized++;
+            } else if ("skipped".equals(status)) {
+                skipped++;
+            } else {
+                failed++;
+            }
+        }
+
+        JSONObject summary = new JSONObject();
+        summary.put("records", records.size());
+        summary.put("resized", resized);
+        summary.put("skipped", skipped);
+        summary.put("failed", failed);
+        summary.put("results", results);
+        logger.log("Resize summary: " + summary);
 
-            String srcBucket = record.getS3().getBucket().getName();
-            String srcKey = record.getS3().getObject().getUrlDecodedKey();
+        // Partial failures are reported in the summary; only fail the invocation
+        // (so S3 retries it) when nothing in the batch could be processed
+        if (failed > 0 && failed == records.size()) {
+            throw new RuntimeException("All records failed: " + summary);
+        }
+        return summary.toString();
+    }
+
+    private JSONObject processRecord(S3EventNotificationRecord record, Context context) {
+        LambdaLogger logger = context.getLogger();
+        JSONObject result = new JSONObject();
+
+        String srcBucket = record.getS3().getBucket().getName();
+        String srcKey = record.getS3().getObject().getUrlDecodedKey();
+        long srcBytes = record.getS3().getObject().getSizeAsLong() == null
+                ? 0 : record.getS3().getObject().getSizeAsLong();
+        result.put("key", srcKey);
 
+        try {
             // Destination is now the DIFFERENT bucket
             String dstBucket = DEST_BUCKET_NAME;
-            String dstKey = "resized-" + srcKey;
 
             // Infer the image type.
-            Matcher matcher = Pattern.compile(REGEX).matcher(srcKey);
-            if (!matcher.matches()) {
+            String imageType = ImageFormats.extension(srcKey);
+            if (imageType == null) {
                 logger.log("Unable to infer image type for key " + srcKey);
-                return "";
+                return result.put("status", "skipped").put("message", "Unable to infer image type");
             }
-            String imageType = matcher.group(1).toLowerCase();
             // Support both .jpg and .jpeg extensions
-            if (!(JPG_TYPE.equals(imageType)) && !("jpeg".equals(imageType)) && !(PNG_TYPE.equals(imageType))) {
+            if (!ImageFormats.isSupported(imageType)) {
                 logger.log("Skipping non-image " + srcKey);
-                return "";
+                return result.put("status", "skipped").put("message", "Not an image");
             }
 
-            // Download from Source Bucket
-            InputStream s3Object = getObject(srcBucket, srcKey);
+            if (srcBytes >= TILE_MIN_BYTES) {
+                result.put("tiles", requestTiles(srcKey));
+            }
+
+            // Skip-if-current: every derivative carries the source ETag in its
+            // metadata, so a cheap HEAD tells us whether another path (the Step
+            // Functions wrapper or an on-demand resize) already produced it
+            String sourceETag = DerivativeMetadata.normalizeETag(record.getS3().getObject().geteTag());
+            List<Integer> staleSizes = findStaleSizes(dstBucket, srcKey, sourceETag);
+            if (staleSizes.isEmpty()) {
+                logger.log("Derivatives already current for " + srcKey + " (ETag " + sourceETag + ")");
+                return result.put("status", "skipped").put("message", "Derivatives already current");
+            }
 
-            // Resize
-            BufferedImage srcImage = ImageIO.read(s3Object);
-            if (srcImage == null) {
+            // Download from Source Bucket
+            // Decode ONCE - decoding is by far the most expensive step, so only
+            // decode as many pixels as the largest stale derivative needs (when
+            // that is small enough, a JPEG's EXIF thumbnail replaces the decode).
+            // Records are decoded concurrently, so each one gets its share of the memory.
+            DecodedImage decoded;
+            try (InputStream s3Object = getObject(srcBucket, srcKey)) {
+                decoded = engine.decode(s3Object, staleSizes.get(0),
+                        context.getMemoryLimitInMB() / RECORD_CONCURRENCY);
+            }
+            if (decoded == null) {
                 String errorMsg = "Could not read image: " + srcKey
                         + " - File may be corrupted or invalid image format";
                 logger.log(errorMsg);
-                throw new RuntimeException(errorMsg);
+                return result.put("status", "failed").put("message", errorMsg);
             }
-            BufferedImage newImage = resizeImage(srcImage);
+            logger.log("Decoded " + decoded.getSourceWidth() + "x" + decoded.getSourceHeight()
+                    + (decoded.isEmbeddedThumbnail() ? " from its EXIF thumbnail"
+                            : " with subsampling " + decoded.getSubsampling()));
+            BufferedImage srcImage = engine.orient(decoded.getImage(), decoded.getOrientation());
+            // Derivatives are flattened onto white; only the source knows whether
+            // it was transparent, which keeps the output lossless
+            boolean translucent = FormatClassifier.isTranslucent(decoded.getImage());
 
-            // Re-encode
-            // Normalize "jpeg" to "jpg" for ImageIO.write() compatibility
-            String outputFormat = imageType.equals("jpeg") ? "jpg" : imageType;
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            ImageIO.write(newImage, outputFormat, outputStream);
+            // Cascade downscales from the largest size to the smallest, each one
+            // drawn from the previous (larger) derivative instead of the original
+            List<CompletableFuture<String>> uploads = new ArrayList<>();
+            List<BufferedImage> derivatives = new ArrayList<>();
+            BufferedImage previous = srcImage;
+            // Sizes at or above the source's longest edge are never upscaled:
+            // they all store the original-size image, encoded once
+            int longestEdge = Math.max(decoded.getSourceWidth(), decoded.getSourceHeight());
+            List<String> originalSizeKeys = new ArrayList<>();
+            int originalSizeProfile = 0;
+            // Current sizes are skipped; the decode may not even cover them
+            for (int size : staleSizes) {
+                if (size >= longestEdge) {
+                    originalSizeKeys.add(derivativeKey(size, srcKey));
+                    // Encoded with the profile of the largest such size
+                    originalSizeProfile = Math.max(originalSizeProfile, size);
+                    continue;
+                }
+                BufferedImage derivative = engine.scale(srcImage, previous, size);
+                derivatives.add(derivative);
+                previous = derivative;
+                String dstKey = derivativeKey(size, srcKey);
 
-            // Upload to DESTINATION Bucket
-            try {
-                putObject(outputStream, dstBucket, dstKey, imageType, logger);
-                logger.log("Successfully resized and moved to " + dstBucket + "/" + dstKey);
-                return "Object successfully resized";
-            } catch (AwsServiceException e) {
-                logger.log("Error writing to destination: " + e.awsErrorDetails().errorMessage());
-                return e.awsErrorDetails().errorMessage();
+                // Encode and upload to DESTINATION Bucket in parallel
+                uploads.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        EncodedImage encoded = engine.encodeDerivative(derivative, imageType, size, translucent);
+                        putObject(encoded, dstBucket, dstKey, sourceETag);
+                        logger.log("Successfully resized and moved to " + dstBucket + "/" + dstKey);
+                        return null;
+                    } catch (AwsServiceException e) {
+                        logger.log("Error writing to destination: " + e.awsErrorDetails().errorMessage());
+                        return e.awsErrorDetails().errorMessage();
+                    } catch (IOException e) {
+                        logger.log("Error encoding " + dstKey + ": " + e.getMessage());
+                        return e.getMessage();
+                    }
+                }, executorService));
+            }
+
+            if (!originalSizeKeys.isEmpty()) {
+                int profileSize = originalSizeProfile;
+                uploads.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        EncodedImage encoded = engine.encodeDerivative(srcImage, imageType, profileSize, translucent);
+                        for (String dstKey : originalSizeKeys) {
+                            putObject(encoded, dstBucket, dstKey, sourceETag);
+                            logger.log("Stored original size (" + longestEdge + "px) as " + dstBucket + "/" + dstKey);
+                        }
+                        return null;
+                    } catch (AwsServiceException e) {
+                        logger.log("Error writing to destination: " + e.awsErrorDetails().errorMessage());
+                        return e.awsErrorDetails().errorMessage();
+                    } catch (IOException e) {
+                        logger.log("Error encoding " + originalSizeKeys + ": " + e.getMessage());
+                        return e.getMessage();
+                    }
+                }, executorService));
+            }
+
+            CompletableFuture.allOf(uploads.toArray(new CompletableFuture[0])).join();
+
+            // Every encode has finished, so the rasters can go back to the pool
+            // for the next warm invocation
+            derivatives.forEach(engine::release);
+            if (srcImage != decoded.getImage()) {
+                engine.release(decoded.getImage());
             }
+            engine.release(srcImage);
+            for (CompletableFuture<String> upload : uploads) {
+                String error = upload.join();
+                if (error != null) {
+                    return result.put("status", "failed").put("message", error);
+                }
+            }
+            return result.put("status", "resized").put("message", "Object successfully resized");
+
+        } catch (Exception e) {
+            logger.log("Error processing " + srcKey + ": " + e.getMessage());
+            return result.put("status", "failed").put("message", String.valueOf(e.getMessage()));
+        }
+    }
 
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    // Queue the pyramid: the request's creation invokes LambdaTile, which skips
+    // it when the pyramid is already current. Returns "queued" or the error;
+    // either way the thumbnails go on.
+    private String requestTiles(String srcKey) {
+        try {
+            s3Client.putObject(PutObjectRequest.builder()
+                    .bucket(DEST_BUCKET_NAME)
+                    .key(DeepZoom.requestKey(srcKey))
+                    .build(), RequestBody.empty());
+            return "queued";
+        } catch (AwsServiceException e) {
+            return "failed: " + e.getMessage();
         }
     }
 
@@ -119,43 +294,68 @@ public class LambdaResize implements RequestHandler<S3Event, String> {
         return s3Client.getObject(getObjectRequest);
     }
 
-    private void putObject(ByteArrayOutputStream outputStream,
-            String bucket, String key, String imageType, LambdaLogger logger) {
-        Map<String, String> metadata = new HashMap<>();
-        metadata.put("Content-Length", Integer.toString(outputStream.size()));
-        if (JPG_TYPE.equals(imageType)) {
-            metadata.put("Content-Type", JPG_MIME);
-        } else if (PNG_TYPE.equals(imageType)) {
-            metadata.put("Content-Type", PNG_MIME);
-        }
+    // The key keeps the source extension; the Content-Type says what was written
+    private void putObject(EncodedImage encoded,
+            String bucket, String key, String sourceETag) {
+        Map<String, String> metadata = DerivativeMetadata.build(encoded.getData().length,
+                encoded.getExtension(), sourceETag);
 
         PutObjectRequest putObjectRequest = PutObjectRequest.builder()
                 .bucket(bucket)
                 .key(key)
+                .contentType(encoded.getContentType())
                 .metadata(metadata)
                 .build();
 
-        s3Client.putObject(putObjectRequest,
-                RequestBody.fromBytes(outputStream.toByteArray()));
+        s3Client.putObject(putObjectRequest, RequestBody.fromBytes(encoded.getData()));
     }
 
-    private BufferedImage resizeImage(BufferedImage srcImage) {
-        int srcHeight = srcImage.getHeight();
-        int srcWidth = srcImage.getWidth();
-        float scalingFactor = Math.min(
-                MAX_DIMENSION / srcWidth, MAX_DIMENSION / srcHeight);
-        int width = (int) (scalingFactor * srcWidth);
-        int height = (int) (scalingFactor * srcHeight);
-
-        BufferedImage resizedImage = new BufferedImage(width, height,
-                BufferedImage.TYPE_INT_RGB);
-        Graphics2D graphics = resizedImage.createGraphics();
-        graphics.setPaint(Color.white);
-        graphics.fillRect(0, 0, width, height);
-        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
-                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-        graphics.drawImage(srcImage, 0, 0, width, height, null);
-        graphics.dispose();
-        return resizedImage;
+    // HEAD every derivative and return the sizes whose stamp does not match the
+    // source ETag (missing objects and unstamped legacy thumbnails are stale)
+    private List<Integer> findStaleSizes(String bucket, String srcKey, String sourceETag) {
+        if (sourceETag == null) {
+            return DERIVATIVE_SIZES;
+        }
+        List<Integer> staleSizes = new ArrayList<>();
+        for (int size : DERIVATIVE_SIZES) {
+            try {
+                HeadObjectResponse head = s3Client.headObject(HeadObjectRequest.builder()
+                        .bucket(bucket)
+                        .key(derivativeKey(size, srcKey))
+                        .build());
+                if (!sourceETag.equals(head.metadata().get(DerivativeMetadata.SOURCE_ETAG))) {
+                    staleSizes.add(size);
+                }
+            } catch (S3Exception e) {
+                staleSizes.add(size);
+            }
+        }
+        return staleSizes;
+    }
+
+    private static String derivativeKey(int size, String srcKey) {
+        if (size == (int) MAX_DIMENSION) {
+            return "resized-" + srcKey;
+        }
+        return "resized/" + size + "/" + srcKey;
+    }
+
+    // Parse "100,320,1024" into a de-duplicated list ordered largest first
+    private static List<Integer> parseSizes(String value) {
+        TreeSet<Integer> sizes = new TreeSet<>((a, b) -> b - a);
+        for (String part : value.split(",")) {
+            String trimmed = part.trim();
+            if (!trimmed.isEmpty()) {
+                int size = Integer.parseInt(trimmed);
+                if (size <= 0) {
+                    throw new RuntimeException("Invalid DERIVATIVE_SIZES entry: " + trimmed);
+                }
+                sizes.add(size);
+            }
+        }
+        if (sizes.isEmpty()) {
+            sizes.add((int) MAX_DIMENSION);
+        }
+        return new ArrayList<>(sizes);
     }
-}
\ No newline at end of file
+}
@@ -5,23 +5,27 @@ import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
-import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import javax.imageio.ImageIO;
+import java.util.concurrent.ForkJoinPool;
 import org.json.JSONObject;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import vgu.cloud26.thumbnail.BandedDecoder;
+import vgu.cloud26.thumbnail.DecodedImage;
+import vgu.cloud26.thumbnail.DerivativeMetadata;
+import vgu.cloud26.thumbnail.EncodedImage;
+import vgu.cloud26.thumbnail.FormatClassifier;
+import vgu.cloud26.thumbnail.ImageFormats;
+import vgu.cloud26.thumbnail.ThumbnailEngine;
 
 public class LambdaResizeWrapper implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
 
@@ -37,17 +41,19 @@ public class LambdaResizeWrapper implements RequestHandler<APIGatewayProxyReques
             throw new RuntimeException("Missing required environment variables: DEST_BUCKET_NAME, BUCKET_NAME");
         }
     }
-    private static final float MAX_DIMENSION = 100;
-    private final String REGEX = ".*\\.([^\\.]*)";
-    private final String JPG_TYPE = "jpg";
-    private final String JPG_MIME = "image/jpeg";
-    private final String PNG_TYPE = "png";
-    private final String PNG_MIME = "image/png";
+    private static final int MAX_DIMENSION = 100;
+    // Shared decode -> orient -> scale -> encode engine (SCALING_STRATEGY selects the scaler)
+    private static final ThumbnailEngine engine = ThumbnailEngine.fromEnvironment();
+    // Originals above BANDED_DECODE_MIN_PIXELS are decoded once and resampled
+    // in horizontal bands, one per vCPU the function actually has
+    private static final long BANDED_DECODE_MIN_PIXELS = Long.parseLong(
+            System.getenv().getOrDefault("BANDED_DECODE_MIN_PIXELS", "16000000"));
+    private static final BandedDecoder bandedDecoder = new BandedDecoder(engine,
+            new ForkJoinPool(Runtime.getRuntime().availableProcessors()), BANDED_DECODE_MIN_PIXELS);
 
     @Override
     public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
         LambdaLogger logger = context.getLogger();
-        APIGatewayProxyResponseEvent response = new APIGatewayProxyResponseEvent();
 
         try {
             // Parse request body
@@ -134,64 +140,59 @@ public class LambdaResizeWrapper implements RequestHandler<APIGatewayProxyReques
             }
 
             // Infer image type
-            Matcher matcher = Pattern.compile(REGEX).matcher(srcKey);
-            if (!matcher.matches()) {
+            String imageType = ImageFormats.extension(srcKey);
+            if (imageType == null) {
                 return createErrorResponse(400, "Unable to infer image type for key " + srcKey);
             }
-            String imageType = matcher.group(1).toLowerCase();
             logger.log("Detected image type: " + imageType);
-            if (!(JPG_TYPE.equals(imageType)) && !(PNG_TYPE.equals(imageType))) {
+            if (!ImageFormats.isSupported(imageType)) {
                 return createErrorResponse(400, "Skipping non-image " + srcKey);
             }
 
+            // Skip-if-current: if the thumbnail already carries the original's
+            // ETag (e.g. LambdaResize got there first), we are done
+            String sourceETag = sourceETag(srcKey, imageBytes.length);
+            if (sourceETag != null && isDerivativeCurrent(dstKey, sourceETag)) {
+                logger.log("Resized image already current for " + srcKey + " (ETag " + sourceETag + ")");
+                return createSuccessResponse("Resized image already current, skipped");
+            }
+
             // Read and resize image
-            ByteArrayInputStream inputStream = new ByteArrayInputStream(imageBytes);
-            BufferedImage srcImage = ImageIO.read(inputStream);
-            if (srcImage == null) {
+            DecodedImage decoded = engine.decode(new ByteArrayInputStream(imageBytes), MAX_DIMENSION,
+                    context.getMemoryLimitInMB());
+            if (decoded == null) {
                 logger.log(
                         "ImageIO.read returned null for key: " + srcKey + ", image bytes length: " + imageBytes.length);
                 return createErrorResponse(400,
                         "Could not read image: " + srcKey + " (possibly unsupported format or corrupted data)");
             }
-            logger.log("Successfully read image, dimensions: " + srcImage.getWidth() + "x" + srcImage.getHeight());
-
-            BufferedImage newImage = resizeImage(srcImage);
+            // The thumbnail is flattened onto white; only the source knows
+            // whether it was transparent, which keeps the output lossless
+            boolean translucent = FormatClassifier.isTranslucent(decoded.getImage());
+            BufferedImage newImage = bandedDecoder.thumbnail(decoded, MAX_DIMENSION);
+            logger.log("Successfully resized image, dimensions: " + newImage.getWidth() + "x" + newImage.getHeight());
 
             // Re-encode
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            ImageIO.write(newImage, imageType, outputStream);
-
-            // Upload to resized bucket
-            Map<String, String> metadata = new HashMap<>();
-            metadata.put("Content-Length", Integer.toString(outputStream.size()));
-            if (JPG_TYPE.equals(imageType)) {
-                metadata.put("Content-Type", JPG_MIME);
-            } else if (PNG_TYPE.equals(imageType)) {
-                metadata.put("Content-Type", PNG_MIME);
-            }
+            EncodedImage encoded = engine.encodeDerivative(newImage, imageType, MAX_DIMENSION, translucent);
+            engine.release(newImage);
+
+            // Upload to resized bucket; the Content-Type says what was written,
+            // which may differ from the key's extension
+            Map<String, String> metadata = DerivativeMetadata.build(encoded.getData().length,
+                    encoded.getExtension(), sourceETag);
 
             PutObjectRequest putObjectRequest = PutObjectRequest.builder()
                     .bucket(DEST_BUCKET_NAME)
                     .key(dstKey)
+                    .contentType(encoded.getContentType())
                     .metadata(metadata)
                     .build();
 
-            s3Client.putObject(putObjectRequest, RequestBody.fromBytes(outputStream.toByteArray()));
+            s3Client.putObject(putObjectRequest, RequestBody.fromBytes(encoded.getData()));
 
             logger.log("Successfully resized and uploaded to " + DEST_BUCKET_NAME + "/" + dstKey);
 
-            response.setStatusCode(200);
-            response.setBody("Object successfully resized and uploaded");
-            response.withIsBase64Encoded(false);
-
-            Map<String, String> headers = new HashMap<>();
-            headers.put("Content-Type", "text/plain");
-            headers.put("Access-Control-Allow-Origin", "*");
-            headers.put("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
-            headers.put("Access-Control-Allow-Headers", "Content-Type");
-            response.setHeaders(headers);
-
-            return response;
+            return createSuccessResponse("Object successfully resized and uploaded");
 
         } catch (Exception e) {
             logger.log("Error in resize: " + e.getMessage());
@@ -199,21 +200,54 @@ public class LambdaResizeWrapper implements RequestHandler<APIGatewayProxyReques
         }
     }
 
-    private BufferedImage resizeImage(BufferedImage srcImage) {
-        int srcHeight = srcImage.getHeight();
-        int srcWidth = srcImage.getWidth();
-        float scalingFactor = Math.min(MAX_DIMENSION / srcWidth, MAX_DIMENSION / srcHeight);
-        int width = (int) (scalingFactor * srcWidth);
-        int height = (int) (scalingFactor * srcHeight);
-
-        BufferedImage resizedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        Graphics2D graphics = resizedImage.createGraphics();
-        graphics.setPaint(Color.white);
-        graphics.fillRect(0, 0, width, height);
-        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-        graphics.drawImage(srcImage, 0, 0, width, height, null);
-        graphics.dispose();
-        return resizedImage;
+    // ETag of the original as stored, from a HEAD. The upload runs alongside
+    // this resize, so the original may not be there yet, or may still be an
+    // older version of the key (told apart by its size); either way the
+    // thumbnail goes out unstamped and LambdaResize, invoked by the upload's
+    // own notification, stamps it.
+    private String sourceETag(String srcKey, int length) {
+        try {
+            HeadObjectResponse head = s3Client.headObject(HeadObjectRequest.builder()
+                    .bucket(SOURCE_BUCKET_NAME)
+                    .key(srcKey)
+                    .build());
+            if (head.contentLength() == null || head.contentLength() != length) {
+                return null;
+            }
+            return DerivativeMetadata.normalizeETag(head.eTag());
+        } catch (S3Exception e) {
+            return null;
+        }
+    }
+
+    // HEAD the thumbnail and compare its source-etag stamp; missing objects and
+    // unstamped legacy thumbnails count as stale
+    private boolean isDerivativeCurrent(String dstKey, String sourceETag) {
+        try {
+            HeadObjectResponse head = s3Client.headObject(HeadObjectRequest.builder()
+                    .bucket(DEST_BUCKET_NAME)
+                    .key(dstKey)
+                    .build());
+            return sourceETag.equals(head.metadata().get(DerivativeMetadata.SOURCE_ETAG));
+        } catch (S3Exception e) {
+            return false;
+        }
+    }
+
+    private APIGatewayProxyResponseEvent createSuccessResponse(String message) {
+        APIGatewayProxyResponseEvent response = new APIGatewayProxyResponseEvent();
+        response.setStatusCode(200);
+        response.setBody(message);
+        response.withIsBase64Encoded(false);
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Type", "text/plain");
+        headers.put("Access-Control-Allow-Origin", "*");
+        headers.put("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
+        headers.put("Access-Control-Allow-Headers", "Content-Type");
+        response.setHeaders(headers);
+
+        return response;
     }
 
     private APIGatewayProxyResponseEvent createErrorResponse(int statusCode, String message) {
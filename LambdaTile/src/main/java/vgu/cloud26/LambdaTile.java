@@ -0,0 +1,171 @@
+package vgu.cloud26;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.S3Event;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3EventNotificationRecord;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import vgu.cloud26.thumbnail.DeepZoom;
+import vgu.cloud26.thumbnail.DerivativeMetadata;
+import vgu.cloud26.thumbnail.ImageFormats;
+import vgu.cloud26.thumbnail.ThumbnailEngine;
+
+/**
+ * Cuts a large original into its Deep Zoom tile pyramid (tiles/&lt;key&gt;/).
+ *
+ * <p>LambdaResize queues an original by writing its empty
+ * {@link DeepZoom#requestKey} to the resized bucket, whose notification
+ * invokes this function. It runs apart from LambdaResize, with its own memory
+ * and timeout, so thumbnails never wait for a pyramid. The request is deleted
+ * once the pyramid is stored; a failed one fails the invocation, which S3's
+ * asynchronous invoke retries.
+ */
+public class LambdaTile implements RequestHandler<S3Event, String> {
+
+    // 1. Static Client
+    private static final S3Client s3Client = S3Client.builder()
+            .region(Region.AP_SOUTHEAST_2)
+            .build();
+
+    // 2. CONFIGURATION: Source Bucket of the originals, and Target Bucket for
+    // the tiles (where the requests arrive too)
+    private static final String BUCKET_NAME = System.getenv("BUCKET_NAME");
+    private static final String DEST_BUCKET_NAME = System.getenv("DEST_BUCKET_NAME");
+
+    static {
+        if (BUCKET_NAME == null || DEST_BUCKET_NAME == null) {
+            throw new RuntimeException("Missing required environment variable: BUCKET_NAME or DEST_BUCKET_NAME");
+        }
+    }
+
+    // 3. Tiles are encoded as they are cut and uploaded on their own pool
+    private static final ExecutorService tileExecutorService = Executors.newFixedThreadPool(16);
+    private static final ThumbnailEngine engine = ThumbnailEngine.fromEnvironment();
+    private static final DeepZoom deepZoom = new DeepZoom(engine);
+
+    @Override
+    public String handleRequest(S3Event s3event, Context context) {
+        LambdaLogger logger = context.getLogger();
+        // One request per notification in practice; each gets the whole memory
+        JSONArray results = new JSONArray();
+        for (S3EventNotificationRecord record : s3event.getRecords()) {
+            String requestKey = record.getS3().getObject().getUrlDecodedKey();
+            String srcKey = DeepZoom.originalKey(requestKey);
+            if (srcKey == null) {
+                logger.log("Not a tiling request: " + requestKey);
+                continue;
+            }
+            results.put(buildTiles(srcKey, context).put("key", srcKey));
+            s3Client.deleteObject(DeleteObjectRequest.builder()
+                    .bucket(DEST_BUCKET_NAME)
+                    .key(requestKey)
+                    .build());
+        }
+        logger.log("Tiling summary: " + results);
+        return results.toString();
+    }
+
+    // Cut the original into its tile pyramid. The descriptor is written last,
+    // stamped with the source ETag, so it marks a complete and current
+    // pyramid. Throws when tiling fails, so the invocation is retried.
+    private JSONObject buildTiles(String srcKey, Context context) {
+        LambdaLogger logger = context.getLogger();
+        JSONObject result = new JSONObject();
+        String descriptorKey = DeepZoom.descriptorKey(srcKey);
+        List<CompletableFuture<Void>> uploads = new ArrayList<>();
+        DeepZoom.Descriptor descriptor;
+        String sourceETag;
+        // Decoded straight from the S3 stream, in one pass
+        try (ResponseInputStream<GetObjectResponse> s3Object = getObject(BUCKET_NAME, srcKey)) {
+            // Skip-if-current, against the version actually being read
+            sourceETag = DerivativeMetadata.normalizeETag(s3Object.response().eTag());
+            if (sourceETag != null && isCurrent(DEST_BUCKET_NAME, descriptorKey, sourceETag)) {
+                s3Object.abort();
+                logger.log("Tiles already current for " + srcKey + " (ETag " + sourceETag + ")");
+                return result.put("status", "skipped").put("message", "Tiles already current");
+            }
+            descriptor = deepZoom.build(s3Object, context.getMemoryLimitInMB(),
+                    (level, column, row, tile) -> {
+                        // Encoded right away so only compressed tiles wait for upload
+                        String format = tile.getColorModel().hasAlpha() ? ImageFormats.PNG_TYPE : ImageFormats.JPG_TYPE;
+                        byte[] encoded = engine.encode(tile, format, DeepZoom.TILE_SIZE);
+                        PutObjectRequest putRequest = PutObjectRequest.builder()
+                                .bucket(DEST_BUCKET_NAME)
+                                .key(DeepZoom.tileKey(srcKey, level, column, row, format))
+                                .contentType(ImageFormats.mimeType(format))
+                                .build();
+                        uploads.add(CompletableFuture.runAsync(
+                                () -> s3Client.putObject(putRequest, RequestBody.fromBytes(encoded)),
+                                tileExecutorService));
+                    });
+        } catch (NoSuchKeyException e) {
+            // Deleted since it was queued; LambdaDeleteResized clears its tiles
+            logger.log("Original gone before tiling: " + srcKey);
+            return result.put("status", "skipped").put("message", "Original not found");
+        } catch (Exception e) {
+            logger.log("Error tiling " + srcKey + ": " + e.getMessage());
+            throw new RuntimeException("Tiling failed for " + srcKey + ": " + e.getMessage(), e);
+        }
+        if (descriptor == null) {
+            logger.log("Could not read image for tiling: " + srcKey);
+            return result.put("status", "skipped").put("message", "Could not read image");
+        }
+        CompletableFuture.allOf(uploads.toArray(new CompletableFuture[0])).join();
+
+        PutObjectRequest.Builder descriptorRequest = PutObjectRequest.builder()
+                .bucket(DEST_BUCKET_NAME)
+                .key(descriptorKey)
+                .contentType("application/xml");
+        if (sourceETag != null) {
+            descriptorRequest.metadata(Map.of(DerivativeMetadata.SOURCE_ETAG, sourceETag));
+        }
+        s3Client.putObject(descriptorRequest.build(), RequestBody.fromString(descriptor.toXml()));
+        logger.log("Built " + uploads.size() + " tiles for " + srcKey + " ("
+                + descriptor.getWidth() + "x" + descriptor.getHeight() + ", "
+                + (descriptor.getMaxLevel() + 1) + " levels)");
+        return result.put("status", "built").put("tiles", uploads.size());
+    }
+
+    private boolean isCurrent(String bucket, String key, String sourceETag) {
+        try {
+            HeadObjectResponse head = s3Client.headObject(HeadObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .build());
+            return sourceETag.equals(head.metadata().get(DerivativeMetadata.SOURCE_ETAG));
+        } catch (S3Exception e) {
+            return false;
+        }
+    }
+
+    private ResponseInputStream<GetObjectResponse> getObject(String bucket, String key) {
+        return s3Client.getObject(GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .build());
+    }
+}
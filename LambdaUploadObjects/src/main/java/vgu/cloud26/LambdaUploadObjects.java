@@ -18,6 +18,7 @@ import software.amazon.awssdk.services.lambda.model.InvokeRequest;
 import software.amazon.awssdk.services.lambda.model.InvokeResponse;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import vgu.cloud26.common.ChangeJournal;
 
 public class LambdaUploadObjects implements
         RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
@@ -39,6 +40,11 @@ public class LambdaUploadObjects implements
     private static final String ADD_PHOTO_DB_FUNC_NAME = System.getenv().getOrDefault("ADD_PHOTO_DB_FUNC_NAME",
             "LambdaAddPhotoDB");
 
+    // Optional: where the change journal lives, the last uploaded or deleted
+    // keys in sequence. LambdaGetResizedImage forgets what it cached about
+    // exactly those keys.
+    private static final String RESIZED_BUCKET_NAME = System.getenv("RESIZED_BUCKET_NAME");
+
     @Override
     public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
 
@@ -112,6 +118,8 @@ public class LambdaUploadObjects implements
 
             context.getLogger().log("Upload to S3 completed successfully");
 
+            recordChange(s3Client, objName, context);
+
             response.setStatusCode(200);
             response.setBody("Object uploaded successfully");
             response.withIsBase64Encoded(false);
@@ -139,6 +147,22 @@ public class LambdaUploadObjects implements
         return response;
     }
 
+    // Append the key to the change journal so a key cached as missing is
+    // served again. Best effort: without it, cached 404s still expire by
+    // their TTL.
+    private void recordChange(S3Client s3Client, String objName, Context context) {
+        if (RESIZED_BUCKET_NAME == null) {
+            return;
+        }
+        try {
+            if (!new ChangeJournal(s3Client, RESIZED_BUCKET_NAME).append(objName)) {
+                context.getLogger().log("Could not update change journal: too many concurrent writers");
+            }
+        } catch (Exception e) {
+            context.getLogger().log("Could not update change journal: " + e.getMessage());
+        }
+    }
+
     // Helper method to call LambdaAddPhotoDB
     private void callAddPhotoDB(String filename, String description, Context context) {
         try {
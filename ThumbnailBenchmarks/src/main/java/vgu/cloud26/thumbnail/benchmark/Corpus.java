@@ -0,0 +1,59 @@
+package vgu.cloud26.thumbnail.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+/**
+ * Synthetic, deterministic benchmark inputs. Smooth gradients with sensor-like
+ * noise so JPEG and PNG compress roughly like photos instead of flat colour.
+ */
+final class Corpus {
+
+    private static final long SEED = 26L;
+
+    private Corpus() {
+    }
+
+    /**
+     * @return a 4:3 image of about the given megapixels encoded as jpg or png;
+     *         png inputs carry an alpha channel
+     */
+    static byte[] encoded(String format, double megapixels) throws IOException {
+        int height = (int) Math.round(Math.sqrt(megapixels * 1_000_000 * 3 / 4));
+        int width = height * 4 / 3;
+        boolean alpha = "png".equals(format);
+        BufferedImage image = generate(width, height, alpha);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        if (!ImageIO.write(image, format, outputStream)) {
+            throw new IOException("No ImageIO writer for format " + format);
+        }
+        return outputStream.toByteArray();
+    }
+
+    static BufferedImage generate(int width, int height, boolean alpha) {
+        BufferedImage image = new BufferedImage(width, height,
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(SEED);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(17) - 8;
+                int r = clamp(x * 255 / width + noise);
+                int g = clamp(y * 255 / height + noise);
+                int b = clamp(((x + y) & 0xFF) / 2 + 64 + noise);
+                int a = alpha ? clamp(255 - (x * 128 / width)) : 0xFF;
+                row[x] = (a << 24) | (r << 16) | (g << 8) | b;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : Math.min(value, 255);
+    }
+}
@@ -0,0 +1,111 @@
+package vgu.cloud26.thumbnail.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import vgu.cloud26.thumbnail.EncodedImage;
+import vgu.cloud26.thumbnail.EncoderProfile;
+import vgu.cloud26.thumbnail.EncoderProfiles;
+import vgu.cloud26.thumbnail.ImageFormats;
+import vgu.cloud26.thumbnail.RasterPool;
+import vgu.cloud26.thumbnail.ScalingStrategy;
+import vgu.cloud26.thumbnail.ThumbnailEngine;
+
+/**
+ * Bytes saved by the configured encoder profiles against plain ImageIO.write,
+ * per derivative size, and by content-aware output format (OUTPUT_FORMAT=auto)
+ * on top of the profiles. Run by {@code mvn -B package -Pencoder-report} or
+ * directly:
+ *
+ * <pre>
+ * ENCODER_PROFILES="100=quality:0.7,huffman,png:9;default=quality:0.75,huffman,progressive,png:9" \
+ *     java -cp target/benchmarks.jar vgu.cloud26.thumbnail.benchmark.EncoderReport [image-dir]
+ * </pre>
+ *
+ * Without an image directory the synthetic benchmark corpus is used.
+ * DERIVATIVE_SIZES picks the sizes, as in LambdaResize.
+ */
+public final class EncoderReport {
+
+    // var.lambda_memory, as deployed
+    private static final int MEMORY_LIMIT_IN_MB = 512;
+
+    private EncoderReport() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        EncoderProfiles profiles = EncoderProfiles.parse(System.getenv("ENCODER_PROFILES"));
+        List<Integer> sizes = new ArrayList<>();
+        for (String size : System.getenv().getOrDefault("DERIVATIVE_SIZES", "100,320,1024").split(",")) {
+            sizes.add(Integer.parseInt(size.trim()));
+        }
+        Map<String, byte[]> corpus = args.length > 0 ? load(new File(args[0])) : synthetic();
+        ThumbnailEngine engine = new ThumbnailEngine(ScalingStrategy.forName(System.getenv("SCALING_STRATEGY")),
+                RasterPool.unpooled(), profiles, true);
+
+        System.out.printf("%-28s %6s %-40s %12s %12s %8s %12s %8s%n",
+                "source", "size", "profile", "default B", "profile B", "saved", "auto B", "saved");
+        long totalDefault = 0;
+        long totalProfile = 0;
+        long totalAuto = 0;
+        for (Map.Entry<String, byte[]> source : corpus.entrySet()) {
+            String format = ImageFormats.outputFormat(ImageFormats.extension(source.getKey()));
+            for (int size : sizes) {
+                BufferedImage thumbnail = engine.thumbnail(new ByteArrayInputStream(source.getValue()), size,
+                        MEMORY_LIMIT_IN_MB);
+                if (thumbnail == null) {
+                    continue;
+                }
+                EncoderProfile profile = profiles.forSize(size);
+                int defaultBytes = engine.encode(thumbnail, format, EncoderProfile.IMAGEIO_DEFAULT).length;
+                int profileBytes = engine.encode(thumbnail, format, profile).length;
+                EncodedImage auto = engine.encodeDerivative(thumbnail, format, size, false);
+                int autoBytes = auto.getData().length;
+                totalDefault += defaultBytes;
+                totalProfile += profileBytes;
+                totalAuto += autoBytes;
+                System.out.printf("%-28s %6d %-40s %12d %12d %7.1f%% %8d %-3s %7.1f%%%n", source.getKey(), size,
+                        profile, defaultBytes, profileBytes, saved(defaultBytes, profileBytes), autoBytes,
+                        auto.getExtension(), saved(defaultBytes, autoBytes));
+            }
+        }
+        System.out.printf("%-28s %6s %-40s %12d %12d %7.1f%% %12d %7.1f%%%n", "TOTAL", "", "",
+                totalDefault, totalProfile, saved(totalDefault, totalProfile), totalAuto,
+                saved(totalDefault, totalAuto));
+    }
+
+    private static double saved(long defaultBytes, long profileBytes) {
+        return defaultBytes == 0 ? 0 : 100.0 * (defaultBytes - profileBytes) / defaultBytes;
+    }
+
+    private static Map<String, byte[]> synthetic() throws IOException {
+        Map<String, byte[]> corpus = new LinkedHashMap<>();
+        for (String format : new String[] {"jpg", "png"}) {
+            for (double megapixels : new double[] {0.1, 1, 12}) {
+                corpus.put("synthetic-" + megapixels + "mp." + format, Corpus.encoded(format, megapixels));
+            }
+        }
+        return corpus;
+    }
+
+    private static Map<String, byte[]> load(File directory) throws IOException {
+        Map<String, byte[]> corpus = new LinkedHashMap<>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Not a directory: " + directory);
+        }
+        for (File file : files) {
+            String extension = ImageFormats.extension(file.getName());
+            if (file.isFile() && extension != null && ImageFormats.isSupported(extension)) {
+                corpus.put(file.getName(), Files.readAllBytes(file.toPath()));
+            }
+        }
+        return corpus;
+    }
+}
@@ -0,0 +1,161 @@
+package vgu.cloud26.thumbnail.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import vgu.cloud26.thumbnail.BandedDecoder;
+import vgu.cloud26.thumbnail.DecodedImage;
+import vgu.cloud26.thumbnail.RasterPool;
+import vgu.cloud26.thumbnail.ResamplingScaling;
+import vgu.cloud26.thumbnail.ScalingStrategy;
+import vgu.cloud26.thumbnail.ThumbnailEngine;
+
+/**
+ * Throughput of the ThumbnailCore pipeline over a synthetic JPEG/PNG corpus
+ * from 0.1MP to 50MP.
+ *
+ * <pre>
+ * mvn -B package
+ * java -jar target/benchmarks.jar ThumbnailBenchmark -prof gc
+ * </pre>
+ *
+ * {@code -prof gc} adds the allocation rate (gc.alloc.rate.norm is bytes
+ * allocated per thumbnail); the {@code outputBytes} counter is the size of the
+ * encoded thumbnail. Narrow the matrix with e.g. {@code -p megapixels=12 -p format=jpg}.
+ *
+ * <p>{@code -p pooled=false,true} compares gc.alloc.rate.norm with and
+ * without the {@link RasterPool}; reader, writer and buffer reuse is always on.
+ *
+ * <p>Strategies ending in {@code -scalar} force the scalar loop of
+ * {@link ResamplingScaling} so the SIMD path can be compared against it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g", "-Djava.awt.headless=true", "--add-modules=jdk.incubator.vector"})
+public class ThumbnailBenchmark {
+
+    @Param({"jpg", "png"})
+    public String format;
+
+    @Param({"0.1", "1", "12", "50"})
+    public double megapixels;
+
+    @Param({"bilinear", "progressive", "area", "area-scalar", "lanczos", "lanczos-scalar"})
+    public String strategy;
+
+    @Param({"100"})
+    public int maxDimension;
+
+    // Matches var.lambda_memory, the memory size the resize functions are
+    // deployed with; it sets the subsampling factor and the band count
+    @Param({"512"})
+    public int memoryLimitInMB;
+
+    // Band pool parallelism; LambdaResizeWrapper sizes its pool from
+    // availableProcessors(), so set this to what the deployed function reports
+    @Param({"2"})
+    public int bandParallelism;
+
+    @Param({"true"})
+    public boolean pooled;
+
+    private ThumbnailEngine engine;
+    private ForkJoinPool bandPool;
+    private BandedDecoder bandedDecoder;
+    private byte[] source;
+    private BufferedImage decoded;
+
+    /**
+     * Size of the last encoded thumbnail. The pipeline is deterministic, so
+     * with a single benchmark thread this is the output size per operation.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Output {
+        public long outputBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            outputBytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        engine = new ThumbnailEngine(strategy(strategy),
+                pooled ? new RasterPool(64L * 1024 * 1024) : RasterPool.unpooled());
+        source = Corpus.encoded(format, megapixels);
+        DecodedImage decodedImage = engine.decode(new ByteArrayInputStream(source), maxDimension, memoryLimitInMB);
+        decoded = decodedImage.getImage();
+        bandPool = new ForkJoinPool(bandParallelism);
+        bandedDecoder = new BandedDecoder(engine, bandPool, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        bandPool.shutdown();
+    }
+
+    private static ScalingStrategy strategy(String name) {
+        if (name.endsWith("-scalar")) {
+            ScalingStrategy vectorized = ScalingStrategy.forName(name.substring(0, name.length() - "-scalar".length()));
+            return new ResamplingScaling(((ResamplingScaling) vectorized).getFilter(), false);
+        }
+        return ScalingStrategy.forName(name);
+    }
+
+    /**
+     * Full handler path: decode (subsampled) -> orient -> scale -> encode.
+     */
+    @Benchmark
+    public byte[] thumbnail(Output output) throws IOException {
+        BufferedImage thumbnail = engine.thumbnail(new ByteArrayInputStream(source), maxDimension, memoryLimitInMB);
+        byte[] encoded = engine.encode(thumbnail, format, maxDimension);
+        engine.release(thumbnail);
+        output.outputBytes = encoded.length;
+        return encoded;
+    }
+
+    /**
+     * Same output as {@link #thumbnail} through the banded decoder: one
+     * decode, then the resample split into bandParallelism bands.
+     */
+    @Benchmark
+    public byte[] bandedThumbnail(Output output) throws IOException {
+        BufferedImage thumbnail = bandedDecoder.thumbnail(source, maxDimension, memoryLimitInMB);
+        byte[] encoded = engine.encode(thumbnail, format, maxDimension);
+        engine.release(thumbnail);
+        output.outputBytes = encoded.length;
+        return encoded;
+    }
+
+    /**
+     * Scaling step alone, from the already subsampled raster.
+     */
+    @Benchmark
+    public int scale() {
+        BufferedImage thumbnail = engine.scale(decoded, maxDimension);
+        int pixel = thumbnail.getRGB(0, 0);
+        engine.release(thumbnail);
+        return pixel;
+    }
+}
@@ -0,0 +1,133 @@
+package vgu.cloud26.thumbnail;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Band-parallel variant of {@link ThumbnailEngine#thumbnail} for very large
+ * originals that are already in memory. The original is decoded once, with
+ * the same subsampling as the sequential path; the thumbnail rows are then
+ * split into bands on a ForkJoinPool, each resampled from the decoded raster
+ * into its slice of the output. The contributions are computed for the whole
+ * image, so the stitched result is identical to a sequential resample.
+ *
+ * <p>Only the resample is parallel. The decode stays serial: the JDK JPEG
+ * reader decodes every row above a source region, so decoding bands as
+ * regions repeats the rows of all earlier bands and costs more than a single
+ * decode.
+ */
+public class BandedDecoder {
+
+    private final ThumbnailEngine engine;
+    private final ResamplingScaling scaling;
+    private final ForkJoinPool pool;
+    private final long minPixels;
+
+    /**
+     * @param minPixels originals smaller than this take the sequential path
+     */
+    public BandedDecoder(ThumbnailEngine engine, ForkJoinPool pool, long minPixels) {
+        this.engine = engine;
+        this.pool = pool;
+        this.minPixels = minPixels;
+        // Bands are stitched by resampling against whole-image contributions,
+        // which the Graphics2D strategies cannot do
+        ScalingStrategy strategy = engine.getScalingStrategy();
+        this.scaling = strategy instanceof ResamplingScaling
+                ? (ResamplingScaling) strategy
+                : new ResamplingScaling(ResamplingScaling.Filter.BOX);
+    }
+
+    /**
+     * Same contract as {@link ThumbnailEngine#thumbnail}: decode, orient and
+     * scale so the longest edge is maxDimension.
+     *
+     * @return the thumbnail, or null when no ImageReader understands the data
+     */
+    public BufferedImage thumbnail(byte[] data, int maxDimension, int memoryLimitInMB) throws IOException {
+        DecodedImage decoded = engine.decode(new ByteArrayInputStream(data), maxDimension, memoryLimitInMB);
+        return decoded == null ? null : thumbnail(decoded, maxDimension);
+    }
+
+    /**
+     * Orient and scale a decode made with
+     * {@link ThumbnailEngine#decode(java.io.InputStream, int, int)}, banded when
+     * the original is large enough. The decoded image is released.
+     */
+    public BufferedImage thumbnail(DecodedImage decoded, int maxDimension) {
+        // Nothing to parallelise when the EXIF thumbnail stood in for the frame
+        if (decoded.isEmbeddedThumbnail()
+                || (long) decoded.getSourceWidth() * decoded.getSourceHeight() < minPixels
+                || pool.getParallelism() < 2) {
+            return engine.thumbnail(decoded, maxDimension);
+        }
+
+        BufferedImage whole = decoded.getImage();
+        int decodedWidth = whole.getWidth();
+        int decodedHeight = whole.getHeight();
+        int orientation = decoded.getOrientation();
+
+        // Scale before orienting so only the thumbnail is rotated; the target
+        // size is still worked out in upright space
+        boolean swap = orientation >= 5;
+        int[] upright = ThumbnailEngine.targetSize(swap ? decodedHeight : decodedWidth,
+                swap ? decodedWidth : decodedHeight, maxDimension);
+        int targetWidth = swap ? upright[1] : upright[0];
+        int targetHeight = swap ? upright[0] : upright[1];
+
+        ResamplingScaling.Contributions horizontal =
+                ResamplingScaling.Contributions.compute(scaling.getFilter(), decodedWidth, targetWidth);
+        ResamplingScaling.Contributions vertical =
+                ResamplingScaling.Contributions.compute(scaling.getFilter(), decodedHeight, targetHeight);
+        BufferedImage thumbnail = engine.getRasterPool().acquire(targetWidth, targetHeight,
+                BufferedImage.TYPE_INT_RGB);
+
+        int rowsPerBand = Math.max(1, (targetHeight + pool.getParallelism() - 1) / pool.getParallelism());
+        try {
+            pool.invoke(new BandTask(whole, horizontal, vertical, thumbnail, 0, targetHeight, rowsPerBand));
+        } finally {
+            engine.release(whole);
+        }
+        BufferedImage oriented = engine.orient(thumbnail, orientation);
+        if (oriented != thumbnail) {
+            engine.release(thumbnail);
+        }
+        return oriented;
+    }
+
+    private final class BandTask extends RecursiveAction {
+        private final BufferedImage whole;
+        private final ResamplingScaling.Contributions horizontal;
+        private final ResamplingScaling.Contributions vertical;
+        private final BufferedImage thumbnail;
+        private final int fromRow;
+        private final int toRow;
+        private final int rowsPerBand;
+
+        BandTask(BufferedImage whole, ResamplingScaling.Contributions horizontal,
+                ResamplingScaling.Contributions vertical, BufferedImage thumbnail, int fromRow, int toRow,
+                int rowsPerBand) {
+            this.whole = whole;
+            this.horizontal = horizontal;
+            this.vertical = vertical;
+            this.thumbnail = thumbnail;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.rowsPerBand = rowsPerBand;
+        }
+
+        @Override
+        protected void compute() {
+            if (toRow - fromRow > rowsPerBand) {
+                int middle = (fromRow + toRow) >>> 1;
+                invokeAll(new BandTask(whole, horizontal, vertical, thumbnail, fromRow, middle, rowsPerBand),
+                        new BandTask(whole, horizontal, vertical, thumbnail, middle, toRow, rowsPerBand));
+                return;
+            }
+            scaling.resampleRows(whole, 0, horizontal, vertical, fromRow, toRow, thumbnail);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package vgu.cloud26.thumbnail;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+/**
+ * Single Graphics2D.drawImage with bilinear interpolation, straight from the
+ * source to the target size. This is what the handlers have always done.
+ */
+public class BilinearScaling implements ScalingStrategy {
+
+    @Override
+    public void scaleInto(BufferedImage src, BufferedImage dst, RasterPool pool) {
+        int targetWidth = dst.getWidth();
+        int targetHeight = dst.getHeight();
+        Graphics2D graphics = dst.createGraphics();
+        graphics.setPaint(Color.white);
+        graphics.fillRect(0, 0, targetWidth, targetHeight);
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(src, 0, 0, targetWidth, targetHeight, null);
+        graphics.dispose();
+    }
+}
@@ -0,0 +1,103 @@
+package vgu.cloud26.thumbnail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Per-thread ImageReader/ImageWriter instances and output buffers, reused
+ * across invocations instead of going through IIORegistry service lookup
+ * and allocating a new codec (and, for JPEG, native decoder state) each time.
+ *
+ * <p>ImageReaders and ImageWriters are not thread-safe, so each thread has its
+ * own. An instance is taken out of the cache while in use and put back on
+ * release, so nested use on one thread simply gets a second instance.
+ */
+final class Codecs {
+
+    private static final ThreadLocal<Deque<ImageReader>> READERS = ThreadLocal.withInitial(ArrayDeque::new);
+    private static final ThreadLocal<Map<String, ImageWriter>> WRITERS = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<OutputBuffer> BUFFERS = ThreadLocal.withInitial(OutputBuffer::new);
+
+    private Codecs() {
+    }
+
+    /**
+     * A reader that can decode the stream, without input set.
+     *
+     * @return the reader, or null when no ImageReader understands the data
+     */
+    static ImageReader reader(ImageInputStream stream) throws IOException {
+        Deque<ImageReader> cached = READERS.get();
+        for (Iterator<ImageReader> it = cached.iterator(); it.hasNext();) {
+            ImageReader reader = it.next();
+            if (canDecode(reader, stream)) {
+                it.remove();
+                return reader;
+            }
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+        return readers.hasNext() ? readers.next() : null;
+    }
+
+    // Like ImageIO's own lookup, treat a provider that trips over a short or
+    // odd stream as "no", and leave the stream where it was either way
+    private static boolean canDecode(ImageReader reader, ImageInputStream stream) {
+        try {
+            stream.mark();
+            try {
+                return reader.getOriginatingProvider().canDecodeInput(stream);
+            } finally {
+                stream.reset();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    static void release(ImageReader reader) {
+        reader.reset();
+        READERS.get().push(reader);
+    }
+
+    /**
+     * @return a writer for the format name, or null if ImageIO has none
+     */
+    static ImageWriter writer(String format) {
+        ImageWriter writer = WRITERS.get().remove(format);
+        if (writer != null) {
+            return writer;
+        }
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        return writers.hasNext() ? writers.next() : null;
+    }
+
+    static void release(String format, ImageWriter writer) {
+        writer.reset();
+        WRITERS.get().put(format, writer);
+    }
+
+    /**
+     * The calling thread's output buffer, emptied. It keeps the capacity it
+     * grew to, so steady-state encodes do not reallocate.
+     */
+    static OutputBuffer buffer() {
+        OutputBuffer buffer = BUFFERS.get();
+        buffer.reset();
+        return buffer;
+    }
+
+    static final class OutputBuffer extends ByteArrayOutputStream {
+        OutputBuffer() {
+            super(64 * 1024);
+        }
+    }
+}
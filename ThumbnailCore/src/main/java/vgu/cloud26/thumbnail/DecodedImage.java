@@ -0,0 +1,60 @@
+package vgu.cloud26.thumbnail;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Result of {@link ThumbnailEngine#decode}: the (possibly subsampled) raster,
+ * or the EXIF embedded thumbnail standing in for it, plus what the header
+ * said about the original.
+ */
+public final class DecodedImage {
+
+    private final BufferedImage image;
+    private final int sourceWidth;
+    private final int sourceHeight;
+    private final int subsampling;
+    private final int orientation;
+    private final boolean embeddedThumbnail;
+
+    public DecodedImage(BufferedImage image, int sourceWidth, int sourceHeight, int subsampling, int orientation) {
+        this(image, sourceWidth, sourceHeight, subsampling, orientation, false);
+    }
+
+    public DecodedImage(BufferedImage image, int sourceWidth, int sourceHeight, int subsampling, int orientation,
+            boolean embeddedThumbnail) {
+        this.image = image;
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+        this.subsampling = subsampling;
+        this.orientation = orientation;
+        this.embeddedThumbnail = embeddedThumbnail;
+    }
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    public int getSourceWidth() {
+        return sourceWidth;
+    }
+
+    public int getSourceHeight() {
+        return sourceHeight;
+    }
+
+    public int getSubsampling() {
+        return subsampling;
+    }
+
+    public int getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * @return true when the image is the EXIF thumbnail and the full frame was
+     *         never decoded; the subsampling is then only approximate
+     */
+    public boolean isEmbeddedThumbnail() {
+        return embeddedThumbnail;
+    }
+}
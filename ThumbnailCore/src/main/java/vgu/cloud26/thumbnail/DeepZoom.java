@@ -0,0 +1,304 @@
+package vgu.cloud26.thumbnail;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.regex.Pattern;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Deep Zoom (DZI) tile pyramid of a large original: level maxLevel is full
+ * size, every level below is half the one above (rounded up), down to 1x1 at
+ * level 0. Tiles are 256px with no overlap, so a viewer fetches only what is
+ * on screen at the current zoom.
+ *
+ * <p>The source is decoded once, top to bottom, by one reader on one
+ * forward-only stream, so the compressed bytes are consumed as they are read
+ * rather than held whole. ImageIO cannot resume a JPEG decode part-way, so
+ * reading it in regions would re-decode every row above each one; the
+ * decoded image is kept whole instead, and rejected when it (with its
+ * EXIF-rotated copy, if any) does not fit in half the memory. Its rows are
+ * then fed to the top level, which cuts a row of tiles every 256 rows and
+ * hands each pair of rows, 2x2 box-averaged, to the level below, so the
+ * pyramid adds only one strip of tiles per level.
+ *
+ * <p>Stored layout, relative to {@link #prefix}: {@code image.dzi} and
+ * {@code image_files/<level>/<column>_<row>.<format>}. The request that
+ * queued the build lives apart, at {@link #requestKey}, until it is done.
+ */
+public final class DeepZoom {
+
+    public static final int TILE_SIZE = 256;
+
+    private static final String REQUEST_PREFIX = "tile-requests/";
+
+    private static final Pattern TILE_PATH = Pattern.compile("\\d{1,2}/\\d{1,5}_\\d{1,5}\\.(jpg|png)");
+
+    /**
+     * Receives tiles in row-major order per level; levels interleave.
+     */
+    public interface TileSink {
+        void tile(int level, int column, int row, BufferedImage tile) throws IOException;
+    }
+
+    private final ThumbnailEngine engine;
+
+    public DeepZoom(ThumbnailEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * @param input the encoded original, read once and not closed
+     * @return the descriptor, or null when no ImageReader understands the data
+     * @throws IOException when decoding fails or the image cannot be decoded
+     *         within the memory limit
+     */
+    public Descriptor build(InputStream input, int memoryLimitInMB, TileSink sink) throws IOException {
+        try (ImageInputStream imageStream = ImageIO.createImageInputStream(input)) {
+            if (imageStream == null) {
+                return null;
+            }
+            ImageReader reader = Codecs.reader(imageStream);
+            if (reader == null) {
+                return null;
+            }
+            try {
+                reader.setInput(imageStream, true, false);
+                boolean jpeg = "jpeg".equalsIgnoreCase(reader.getFormatName());
+                int srcWidth = reader.getWidth(0);
+                int srcHeight = reader.getHeight(0);
+                int orientation = jpeg ? ExifReader.orientation(ExifReader.findApp1(reader.getImageMetadata(0)))
+                        : ExifReader.ORIENTATION_NORMAL;
+                boolean upright = orientation <= ExifReader.ORIENTATION_NORMAL || orientation > 8;
+                long budgetBytes = (long) memoryLimitInMB * 1024 * 1024 / 2;
+                if (4L * srcWidth * srcHeight * (upright ? 1 : 2) > budgetBytes) {
+                    throw new IOException("Too large to decode for tiling: " + srcWidth + "x" + srcHeight);
+                }
+                // Tiles keep the source's format family; PNG keeps alpha and hard edges
+                String format = jpeg ? ImageFormats.JPG_TYPE : ImageFormats.PNG_TYPE;
+
+                BufferedImage decoded = reader.read(0);
+                BufferedImage oriented = engine.orient(decoded, orientation);
+                if (oriented != decoded) {
+                    engine.release(decoded);
+                }
+                Level top = pyramid(oriented.getWidth(), oriented.getHeight(), !jpeg, sink);
+                push(oriented, top, new int[oriented.getWidth()]);
+                engine.release(oriented);
+                return new Descriptor(oriented.getWidth(), oriented.getHeight(), format);
+            } finally {
+                Codecs.release(reader);
+            }
+        }
+    }
+
+    private static void push(BufferedImage image, Level top, int[] row) throws IOException {
+        for (int y = 0; y < image.getHeight(); y++) {
+            image.getRGB(0, y, image.getWidth(), 1, row, 0, image.getWidth());
+            top.push(row);
+        }
+    }
+
+    // Chain of levels from full size down to 1x1; returns the top one
+    private static Level pyramid(int width, int height, boolean alpha, TileSink sink) {
+        int maxLevel = maxLevel(width, height);
+        int[] widths = new int[maxLevel + 1];
+        int[] heights = new int[maxLevel + 1];
+        widths[maxLevel] = width;
+        heights[maxLevel] = height;
+        for (int level = maxLevel - 1; level >= 0; level--) {
+            widths[level] = (widths[level + 1] + 1) / 2;
+            heights[level] = (heights[level + 1] + 1) / 2;
+        }
+        Level next = null;
+        for (int level = 0; level <= maxLevel; level++) {
+            next = new Level(level, widths[level], heights[level], alpha, sink, next);
+        }
+        return next;
+    }
+
+    /**
+     * @return ceil(log2(longest edge)), the DZI level of the full-size image
+     */
+    public static int maxLevel(int width, int height) {
+        int dimension = Math.max(width, height);
+        int level = 0;
+        while (dimension > 1) {
+            dimension = (dimension + 1) / 2;
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * @return "tiles/&lt;key&gt;/", under which all of an original's tiles live
+     */
+    public static String prefix(String originalKey) {
+        return "tiles/" + originalKey + "/";
+    }
+
+    public static String descriptorKey(String originalKey) {
+        return prefix(originalKey) + "image.dzi";
+    }
+
+    /**
+     * @return "tile-requests/&lt;key&gt;", the empty object that asks for the
+     *         original's pyramid; its creation is what triggers the tiling
+     *         function. Kept out of tiles/ so one prefix holds every request.
+     */
+    public static String requestKey(String originalKey) {
+        return REQUEST_PREFIX + originalKey;
+    }
+
+    /**
+     * @return the original a {@link #requestKey} asks for, or null when the
+     *         key is not a tiling request
+     */
+    public static String originalKey(String requestKey) {
+        if (!requestKey.startsWith(REQUEST_PREFIX) || requestKey.length() == REQUEST_PREFIX.length()) {
+            return null;
+        }
+        return requestKey.substring(REQUEST_PREFIX.length());
+    }
+
+    public static String tileKey(String originalKey, int level, int column, int row, String format) {
+        return tileKey(originalKey, level + "/" + column + "_" + row + "." + format);
+    }
+
+    /**
+     * @param tilePath "&lt;level&gt;/&lt;column&gt;_&lt;row&gt;.&lt;format&gt;", as a DZI viewer
+     *        appends it to the tiles directory
+     * @return the tile's key, or null when the path is malformed
+     */
+    public static String tileKey(String originalKey, String tilePath) {
+        if (tilePath == null || !TILE_PATH.matcher(tilePath).matches()) {
+            return null;
+        }
+        return prefix(originalKey) + "image_files/" + tilePath;
+    }
+
+    /**
+     * Size and tile format of a pyramid, serialized as the .dzi document.
+     */
+    public static final class Descriptor {
+        private final int width;
+        private final int height;
+        private final String format;
+
+        Descriptor(int width, int height, String format) {
+            this.width = width;
+            this.height = height;
+            this.format = format;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public String getFormat() {
+            return format;
+        }
+
+        public int getMaxLevel() {
+            return maxLevel(width, height);
+        }
+
+        public String toXml() {
+            return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                    + "<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\" Format=\"" + format
+                    + "\" Overlap=\"0\" TileSize=\"" + TILE_SIZE + "\">\n"
+                    + "  <Size Width=\"" + width + "\" Height=\"" + height + "\"/>\n"
+                    + "</Image>\n";
+        }
+    }
+
+    // One pyramid level: collects rows into a strip of tiles and passes each
+    // pair of rows, halved, to the level below
+    private static final class Level {
+        private final int level;
+        private final int width;
+        private final int height;
+        private final boolean alpha;
+        private final TileSink sink;
+        private final Level next;
+        private final int[] strip;
+        private final int[] pending;
+        private final int[] half;
+        private int stripRows;
+        private int tileRow;
+        private int rowsSeen;
+        private boolean hasPending;
+
+        Level(int level, int width, int height, boolean alpha, TileSink sink, Level next) {
+            this.level = level;
+            this.width = width;
+            this.height = height;
+            this.alpha = alpha;
+            this.sink = sink;
+            this.next = next;
+            this.strip = new int[width * Math.min(TILE_SIZE, height)];
+            this.pending = next == null ? null : new int[width];
+            this.half = next == null ? null : new int[next.width];
+        }
+
+        void push(int[] row) throws IOException {
+            System.arraycopy(row, 0, strip, stripRows * width, width);
+            stripRows++;
+            rowsSeen++;
+            if (stripRows == TILE_SIZE || rowsSeen == height) {
+                flush();
+            }
+            if (next == null) {
+                return;
+            }
+            if (hasPending) {
+                next.push(halve(pending, row));
+                hasPending = false;
+            } else if (rowsSeen == height) {
+                // Odd height: the last row pairs with itself
+                next.push(halve(row, row));
+            } else {
+                System.arraycopy(row, 0, pending, 0, width);
+                hasPending = true;
+            }
+        }
+
+        // 2x2 box average, per channel; an odd last column pairs with itself
+        private int[] halve(int[] upper, int[] lower) {
+            for (int x = 0; x < half.length; x++) {
+                int left = 2 * x;
+                int right = Math.min(left + 1, width - 1);
+                int a = upper[left];
+                int b = upper[right];
+                int c = lower[left];
+                int d = lower[right];
+                int pixel = 0;
+                for (int shift = 0; shift <= 24; shift += 8) {
+                    int sum = ((a >>> shift) & 0xFF) + ((b >>> shift) & 0xFF)
+                            + ((c >>> shift) & 0xFF) + ((d >>> shift) & 0xFF);
+                    pixel |= ((sum + 2) >> 2) << shift;
+                }
+                half[x] = pixel;
+            }
+            return half;
+        }
+
+        private void flush() throws IOException {
+            for (int column = 0; column * TILE_SIZE < width; column++) {
+                int tileWidth = Math.min(TILE_SIZE, width - column * TILE_SIZE);
+                BufferedImage tile = new BufferedImage(tileWidth, stripRows,
+                        alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+                tile.setRGB(0, 0, tileWidth, stripRows, strip, column * TILE_SIZE, width);
+                sink.tile(level, column, tileRow, tile);
+            }
+            tileRow++;
+            stripRows = 0;
+        }
+    }
+}
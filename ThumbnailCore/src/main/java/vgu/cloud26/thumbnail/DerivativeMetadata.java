@@ -0,0 +1,39 @@
+package vgu.cloud26.thumbnail;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * S3 user metadata written on every derivative.
+ */
+public final class DerivativeMetadata {
+
+    /** User metadata key (x-amz-meta-source-etag) holding the ETag of the original. */
+    public static final String SOURCE_ETAG = "source-etag";
+
+    private DerivativeMetadata() {
+    }
+
+    public static Map<String, String> build(int contentLength, String extension, String sourceETag) {
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put("Content-Length", Integer.toString(contentLength));
+        String mimeType = ImageFormats.mimeType(extension);
+        if (mimeType != null) {
+            metadata.put("Content-Type", mimeType);
+        }
+        if (sourceETag != null) {
+            metadata.put(SOURCE_ETAG, sourceETag);
+        }
+        return metadata;
+    }
+
+    /**
+     * S3 returns ETags quoted in HTTP responses but unquoted in event notifications.
+     */
+    public static String normalizeETag(String eTag) {
+        if (eTag == null || eTag.isEmpty()) {
+            return null;
+        }
+        return eTag.replace("\"", "");
+    }
+}
@@ -0,0 +1,32 @@
+package vgu.cloud26.thumbnail;
+
+/**
+ * Result of {@link ThumbnailEngine#encodeDerivative}: the bytes plus the
+ * format they were actually written in, which may differ from the source
+ * extension.
+ */
+public final class EncodedImage {
+
+    private final byte[] data;
+    private final String extension;
+
+    public EncodedImage(byte[] data, String extension) {
+        this.data = data;
+        this.extension = extension;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return "jpg" or "png"
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    public String getContentType() {
+        return ImageFormats.mimeType(extension);
+    }
+}
@@ -0,0 +1,118 @@
+package vgu.cloud26.thumbnail;
+
+import java.util.Locale;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+
+/**
+ * Encoder settings for one derivative size. Parsed from a comma-separated
+ * option list such as {@code quality:0.8,huffman,progressive,png:9}:
+ *
+ * <ul>
+ * <li>{@code quality:<0-1>} JPEG quality (ImageIO's default is 0.75)</li>
+ * <li>{@code huffman} optimized Huffman tables (lossless, usually a few % smaller)</li>
+ * <li>{@code progressive} progressive JPEG scans</li>
+ * <li>{@code png:<0-9>} PNG deflate level</li>
+ * </ul>
+ *
+ * Anything not listed keeps the ImageIO default.
+ */
+public final class EncoderProfile {
+
+    /** Exactly what ImageIO.write does; the baseline for the bytes-saved report. */
+    public static final EncoderProfile IMAGEIO_DEFAULT = new EncoderProfile(null, false, false, null);
+
+    private final Float jpegQuality;
+    private final boolean optimizeHuffman;
+    private final boolean progressive;
+    private final Integer pngCompressionLevel;
+
+    public EncoderProfile(Float jpegQuality, boolean optimizeHuffman, boolean progressive,
+            Integer pngCompressionLevel) {
+        this.jpegQuality = jpegQuality;
+        this.optimizeHuffman = optimizeHuffman;
+        this.progressive = progressive;
+        this.pngCompressionLevel = pngCompressionLevel;
+    }
+
+    public static EncoderProfile parse(String options) {
+        Float jpegQuality = null;
+        boolean optimizeHuffman = false;
+        boolean progressive = false;
+        Integer pngCompressionLevel = null;
+        for (String option : options.split(",")) {
+            String trimmed = option.trim().toLowerCase(Locale.ROOT);
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            if (trimmed.startsWith("quality:")) {
+                jpegQuality = Float.parseFloat(trimmed.substring("quality:".length()));
+                if (jpegQuality < 0 || jpegQuality > 1) {
+                    throw new IllegalArgumentException("JPEG quality must be between 0 and 1: " + option);
+                }
+            } else if (trimmed.startsWith("png:")) {
+                pngCompressionLevel = Integer.parseInt(trimmed.substring("png:".length()));
+                if (pngCompressionLevel < 0 || pngCompressionLevel > 9) {
+                    throw new IllegalArgumentException("PNG compression level must be between 0 and 9: " + option);
+                }
+            } else if ("huffman".equals(trimmed)) {
+                optimizeHuffman = true;
+            } else if ("progressive".equals(trimmed)) {
+                progressive = true;
+            } else {
+                throw new IllegalArgumentException("Unknown encoder option: " + option);
+            }
+        }
+        return new EncoderProfile(jpegQuality, optimizeHuffman, progressive, pngCompressionLevel);
+    }
+
+    /**
+     * @return write params for the writer, or null when ImageIO's defaults apply
+     */
+    public ImageWriteParam writeParam(ImageWriter writer, String format) {
+        if (ImageFormats.PNG_TYPE.equals(format)) {
+            if (pngCompressionLevel == null) {
+                return null;
+            }
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            // The JDK PNG writer uses deflate level 9 - round(9 * quality)
+            param.setCompressionQuality(1f - pngCompressionLevel / 9f);
+            return param;
+        }
+        if (jpegQuality == null && !optimizeHuffman && !progressive) {
+            return null;
+        }
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (param instanceof JPEGImageWriteParam) {
+            ((JPEGImageWriteParam) param).setOptimizeHuffmanTables(optimizeHuffman);
+        }
+        if (jpegQuality != null) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(jpegQuality);
+        }
+        if (progressive) {
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        }
+        return param;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder options = new StringBuilder();
+        if (jpegQuality != null) {
+            options.append("quality:").append(jpegQuality).append(',');
+        }
+        if (optimizeHuffman) {
+            options.append("huffman,");
+        }
+        if (progressive) {
+            options.append("progressive,");
+        }
+        if (pngCompressionLevel != null) {
+            options.append("png:").append(pngCompressionLevel).append(',');
+        }
+        return options.length() == 0 ? "imageio-default" : options.substring(0, options.length() - 1);
+    }
+}
@@ -0,0 +1,66 @@
+package vgu.cloud26.thumbnail;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Encoder profile per derivative size, configured as semicolon-separated
+ * {@code <size>=<options>} entries plus an optional {@code default} entry, e.g.
+ *
+ * <pre>
+ * 100=quality:0.7,huffman,png:9;1024=quality:0.85,huffman,progressive;default=quality:0.8,huffman
+ * </pre>
+ *
+ * Sizes without an entry use the default, which is optimized Huffman tables
+ * only (lossless) unless configured otherwise.
+ */
+public final class EncoderProfiles {
+
+    public static final EncoderProfile DEFAULT_PROFILE = EncoderProfile.parse("huffman");
+
+    private final Map<Integer, EncoderProfile> bySize;
+    private final EncoderProfile defaultProfile;
+
+    public EncoderProfiles(Map<Integer, EncoderProfile> bySize, EncoderProfile defaultProfile) {
+        this.bySize = Collections.unmodifiableMap(new TreeMap<>(bySize));
+        this.defaultProfile = defaultProfile;
+    }
+
+    public static EncoderProfiles parse(String config) {
+        Map<Integer, EncoderProfile> bySize = new TreeMap<>();
+        EncoderProfile defaultProfile = DEFAULT_PROFILE;
+        if (config == null || config.trim().isEmpty()) {
+            return new EncoderProfiles(bySize, defaultProfile);
+        }
+        for (String entry : config.split(";")) {
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+            int equals = entry.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Encoder profile entry must be <size>=<options>: " + entry);
+            }
+            String size = entry.substring(0, equals).trim();
+            EncoderProfile profile = EncoderProfile.parse(entry.substring(equals + 1));
+            if ("default".equalsIgnoreCase(size)) {
+                defaultProfile = profile;
+            } else {
+                bySize.put(Integer.parseInt(size), profile);
+            }
+        }
+        return new EncoderProfiles(bySize, defaultProfile);
+    }
+
+    public EncoderProfile forSize(int size) {
+        return bySize.getOrDefault(size, defaultProfile);
+    }
+
+    public EncoderProfile getDefault() {
+        return defaultProfile;
+    }
+
+    public Map<Integer, EncoderProfile> getSizes() {
+        return bySize;
+    }
+}
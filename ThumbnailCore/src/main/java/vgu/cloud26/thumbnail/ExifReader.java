@@ -0,0 +1,150 @@
+package vgu.cloud26.thumbnail;
+
+import java.util.Arrays;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import org.w3c.dom.Node;
+
+/**
+ * Minimal EXIF (APP1) parser: just enough TIFF walking to read the IFD0
+ * orientation and the IFD1 embedded thumbnail.
+ */
+public final class ExifReader {
+
+    public static final int ORIENTATION_NORMAL = 1;
+
+    private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+    private static final int APP1_MARKER = 0xE1;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+
+    private ExifReader() {
+    }
+
+    /**
+     * Find the raw EXIF APP1 payload in the native JPEG metadata tree.
+     *
+     * @return the segment bytes (starting with "Exif\0\0"), or null if absent
+     */
+    public static byte[] findApp1(IIOMetadata metadata) {
+        if (metadata == null || !JPEG_METADATA_FORMAT.equals(metadata.getNativeMetadataFormatName())) {
+            return null;
+        }
+        Node root = metadata.getAsTree(JPEG_METADATA_FORMAT);
+        for (Node child = root.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (!"markerSequence".equals(child.getNodeName())) {
+                continue;
+            }
+            for (Node marker = child.getFirstChild(); marker != null; marker = marker.getNextSibling()) {
+                if (!"unknown".equals(marker.getNodeName())) {
+                    continue;
+                }
+                Node tag = marker.getAttributes().getNamedItem("MarkerTag");
+                if (tag != null && Integer.parseInt(tag.getNodeValue()) == APP1_MARKER) {
+                    Object data = ((IIOMetadataNode) marker).getUserObject();
+                    if (data instanceof byte[] && isExif((byte[]) data)) {
+                        return (byte[]) data;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the EXIF orientation (1-8), or 1 when missing or malformed
+     */
+    public static int orientation(byte[] app1) {
+        if (app1 == null || !isExif(app1)) {
+            return ORIENTATION_NORMAL;
+        }
+        try {
+            Tiff tiff = new Tiff(app1, 6);
+            int ifd0 = tiff.u32(4);
+            int entries = tiff.u16(ifd0);
+            for (int i = 0; i < entries; i++) {
+                int entry = ifd0 + 2 + i * 12;
+                if (tiff.u16(entry) == TAG_ORIENTATION) {
+                    int value = tiff.u16(entry + 8);
+                    return value >= 1 && value <= 8 ? value : ORIENTATION_NORMAL;
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // Truncated segment, treat as unrotated
+        }
+        return ORIENTATION_NORMAL;
+    }
+
+    /**
+     * The JPEG thumbnail cameras embed in IFD1 (usually 160x120). Its pixels
+     * are stored like the main image's, so the IFD0 orientation applies to it
+     * as well.
+     *
+     * @return the thumbnail's JPEG bytes, or null when missing or malformed
+     */
+    public static byte[] embeddedThumbnail(byte[] app1) {
+        if (app1 == null || !isExif(app1)) {
+            return null;
+        }
+        try {
+            Tiff tiff = new Tiff(app1, 6);
+            int ifd0 = tiff.u32(4);
+            int ifd1 = tiff.u32(ifd0 + 2 + tiff.u16(ifd0) * 12);
+            if (ifd1 <= 0) {
+                return null;
+            }
+            int offset = -1;
+            int length = -1;
+            int entries = tiff.u16(ifd1);
+            for (int i = 0; i < entries; i++) {
+                int entry = ifd1 + 2 + i * 12;
+                int tag = tiff.u16(entry);
+                if (tag == TAG_THUMBNAIL_OFFSET) {
+                    offset = tiff.u32(entry + 8);
+                } else if (tag == TAG_THUMBNAIL_LENGTH) {
+                    length = tiff.u32(entry + 8);
+                }
+            }
+            int start = 6 + offset;
+            if (offset <= 0 || length <= 2 || offset >= app1.length || length > app1.length - start
+                    || (app1[start] & 0xFF) != 0xFF || (app1[start + 1] & 0xFF) != 0xD8) {
+                return null;
+            }
+            return Arrays.copyOfRange(app1, start, start + length);
+        } catch (IndexOutOfBoundsException e) {
+            // Truncated segment, no usable thumbnail
+            return null;
+        }
+    }
+
+    private static boolean isExif(byte[] data) {
+        return data.length > 14 && data[0] == 'E' && data[1] == 'x' && data[2] == 'i' && data[3] == 'f'
+                && data[4] == 0 && data[5] == 0;
+    }
+
+    // TIFF structure view; all offsets are relative to the TIFF header
+    static final class Tiff {
+        private final byte[] data;
+        private final int base;
+        private final boolean littleEndian;
+
+        Tiff(byte[] data, int base) {
+            this.data = data;
+            this.base = base;
+            this.littleEndian = data[base] == 'I' && data[base + 1] == 'I';
+        }
+
+        int u16(int offset) {
+            int b0 = data[base + offset] & 0xFF;
+            int b1 = data[base + offset + 1] & 0xFF;
+            return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+        }
+
+        int u32(int offset) {
+            int lo = u16(littleEndian ? offset : offset + 2);
+            int hi = u16(littleEndian ? offset + 2 : offset);
+            return (hi << 16) | lo;
+        }
+    }
+}
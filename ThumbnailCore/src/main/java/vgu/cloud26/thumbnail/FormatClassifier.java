@@ -0,0 +1,248 @@
+package vgu.cloud26.thumbnail;
+
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+/**
+ * Picks the output encoding of a derivative from the downscaled pixels rather
+ * than the source extension:
+ *
+ * <ul>
+ * <li>continuous-tone content (photographs, including greyscale ones): JPEG</li>
+ * <li>anything else (icons, diagrams, screenshots, text over gradients) stays
+ * lossless, since JPEG rings around hard edges and PNG's row filters turn flat
+ * areas and smooth gradients into runs: palette PNG for at most 256 distinct
+ * colours, truecolour PNG otherwise</li>
+ * <li>a translucent source is never turned into JPEG</li>
+ * </ul>
+ *
+ * Content is classified on horizontal pixel triples, at most ~64K of them:
+ * a triple is textured when its second difference is non-zero beyond rounding
+ * and its step is not a hard edge. Sensor noise and fine detail make most
+ * triples of a photograph textured; flat fills, gradients and anti-aliased
+ * edges do not. The colour count is exact but stops at 257.
+ */
+public final class FormatClassifier {
+
+    public enum Format {
+        JPEG(ImageFormats.JPG_TYPE),
+        PNG(ImageFormats.PNG_TYPE),
+        PNG_PALETTE(ImageFormats.PNG_TYPE);
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    static final int MAX_PALETTE_SIZE = 256;
+    private static final int MAX_SAMPLES = 64 * 1024;
+    // Luma step (0-255) between neighbours that counts as a hard edge
+    private static final int EDGE_THRESHOLD = 48;
+    // Sum over channels of |a - 2b + c| that is more than gradient rounding
+    private static final int TEXTURE_THRESHOLD = 6;
+    // Share of textured triples from which content is treated as photographic
+    private static final double PHOTO_RATIO = 0.2;
+
+    private FormatClassifier() {
+    }
+
+    /**
+     * @param translucent whether the source had visible transparency; the
+     *        thumbnail itself is already flattened onto white
+     */
+    public static Result classify(BufferedImage image, boolean translucent) {
+        if (!translucent && textureRatio(image) >= PHOTO_RATIO) {
+            return new Result(Format.JPEG, null);
+        }
+        int[] palette = palette(image);
+        return palette != null ? new Result(Format.PNG_PALETTE, palette) : new Result(Format.PNG, null);
+    }
+
+    /**
+     * Share of sampled horizontal triples that are textured (see class comment).
+     */
+    static double textureRatio(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (width < 3) {
+            return 0;
+        }
+        int stride = Math.max(1, (int) Math.sqrt((double) width * height / MAX_SAMPLES));
+        long triples = 0;
+        long textured = 0;
+        int[] row = new int[width];
+        for (int y = 0; y < height; y += stride) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 1; x < width - 1; x += stride) {
+                int a = row[x - 1];
+                int b = row[x];
+                int c = row[x + 1];
+                triples++;
+                if (Math.abs(luma(a) - luma(b)) <= EDGE_THRESHOLD
+                        && secondDifference(a, b, c) > TEXTURE_THRESHOLD) {
+                    textured++;
+                }
+            }
+        }
+        return (double) textured / triples;
+    }
+
+    /**
+     * Whether any sampled pixel is not fully opaque. Images without an alpha
+     * channel, or with an opaque palette, return false without reading pixels.
+     */
+    public static boolean isTranslucent(BufferedImage image) {
+        if (image.getColorModel() instanceof IndexColorModel) {
+            return isTranslucent(image.getRaster(), (IndexColorModel) image.getColorModel());
+        }
+        WritableRaster alpha = image.getAlphaRaster();
+        if (alpha == null) {
+            return false;
+        }
+        int width = alpha.getWidth();
+        int height = alpha.getHeight();
+        int stride = Math.max(1, (int) Math.sqrt((double) width * height / MAX_SAMPLES));
+        int opaque = (1 << image.getColorModel().getComponentSize(image.getColorModel().getNumComponents() - 1)) - 1;
+        int[] row = new int[width];
+        for (int y = 0; y < height; y += stride) {
+            alpha.getSamples(0, y, width, 1, 0, row);
+            for (int x = 0; x < width; x += stride) {
+                if (row[x] != opaque) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // A palette image (GIF, palette PNG) has no alpha raster: its alpha is per
+    // palette entry, looked up through the sampled pixels' indices
+    private static boolean isTranslucent(Raster raster, IndexColorModel colorModel) {
+        if (colorModel.getTransparency() == Transparency.OPAQUE) {
+            return false;
+        }
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        int stride = Math.max(1, (int) Math.sqrt((double) width * height / MAX_SAMPLES));
+        int[] row = new int[width];
+        for (int y = 0; y < height; y += stride) {
+            raster.getSamples(0, y, width, 1, 0, row);
+            for (int x = 0; x < width; x += stride) {
+                if (colorModel.getAlpha(row[x]) != 0xFF) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copy an image into an indexed raster over the given palette (as returned
+     * in {@link Result#getPalette}). Up to 16 colours use a packed 1, 2 or 4
+     * bit raster so the PNG writer emits the smaller bit depth.
+     */
+    public static BufferedImage toIndexed(BufferedImage image, int[] palette) {
+        int bits = palette.length <= 2 ? 1 : palette.length <= 4 ? 2 : palette.length <= 16 ? 4 : 8;
+        byte[] r = new byte[palette.length];
+        byte[] g = new byte[palette.length];
+        byte[] b = new byte[palette.length];
+        for (int i = 0; i < palette.length; i++) {
+            r[i] = (byte) (palette[i] >> 16);
+            g[i] = (byte) (palette[i] >> 8);
+            b[i] = (byte) palette[i];
+        }
+        IndexColorModel colorModel = new IndexColorModel(bits, palette.length, r, g, b);
+        BufferedImage indexed = new BufferedImage(image.getWidth(), image.getHeight(),
+                bits == 8 ? BufferedImage.TYPE_BYTE_INDEXED : BufferedImage.TYPE_BYTE_BINARY, colorModel);
+        WritableRaster raster = indexed.getRaster();
+        int width = image.getWidth();
+        int[] row = new int[width];
+        int[] indices = new int[width];
+        for (int y = 0; y < image.getHeight(); y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                indices[x] = Arrays.binarySearch(palette, row[x] & 0xFFFFFF);
+            }
+            raster.setSamples(0, y, width, 1, 0, indices);
+        }
+        return indexed;
+    }
+
+    // Sorted distinct RGB values, or null once there are more than 256
+    private static int[] palette(BufferedImage image) {
+        // Open addressing over 512 slots; -1 is free since only 24-bit values go in
+        int[] slots = new int[MAX_PALETTE_SIZE * 2];
+        Arrays.fill(slots, -1);
+        int count = 0;
+        int width = image.getWidth();
+        int[] row = new int[width];
+        for (int y = 0; y < image.getHeight(); y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                int rgb = row[x] & 0xFFFFFF;
+                int slot = (rgb * 0x9E3779B1) >>> 23;
+                while (slots[slot] != -1 && slots[slot] != rgb) {
+                    slot = (slot + 1) & (slots.length - 1);
+                }
+                if (slots[slot] == -1) {
+                    if (++count > MAX_PALETTE_SIZE) {
+                        return null;
+                    }
+                    slots[slot] = rgb;
+                }
+            }
+        }
+        int[] palette = new int[count];
+        int i = 0;
+        for (int rgb : slots) {
+            if (rgb != -1) {
+                palette[i++] = rgb;
+            }
+        }
+        Arrays.sort(palette);
+        return palette;
+    }
+
+    private static int secondDifference(int a, int b, int c) {
+        int sum = 0;
+        for (int shift = 0; shift <= 16; shift += 8) {
+            sum += Math.abs(((a >> shift) & 0xFF) - 2 * ((b >> shift) & 0xFF) + ((c >> shift) & 0xFF));
+        }
+        return sum;
+    }
+
+    private static int luma(int rgb) {
+        return (299 * ((rgb >> 16) & 0xFF) + 587 * ((rgb >> 8) & 0xFF) + 114 * (rgb & 0xFF)) / 1000;
+    }
+
+    /**
+     * The chosen format, plus the palette when it is {@link Format#PNG_PALETTE}.
+     */
+    public static final class Result {
+        private final Format format;
+        private final int[] palette;
+
+        Result(Format format, int[] palette) {
+            this.format = format;
+            this.palette = palette;
+        }
+
+        public Format getFormat() {
+            return format;
+        }
+
+        public int[] getPalette() {
+            return palette;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package vgu.cloud26.thumbnail;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Extension based format helpers shared by the resize handlers.
+ */
+public final class ImageFormats {
+
+    public static final String JPG_TYPE = "jpg";
+    public static final String JPEG_TYPE = "jpeg";
+    public static final String PNG_TYPE = "png";
+    public static final String JPG_MIME = "image/jpeg";
+    public static final String PNG_MIME = "image/png";
+
+    // Compiled once instead of on every request
+    private static final Pattern EXTENSION = Pattern.compile(".*\\.([^\\.]*)");
+
+    private ImageFormats() {
+    }
+
+    /**
+     * @return the lower-case extension of the key, or null if it has none
+     */
+    public static String extension(String key) {
+        Matcher matcher = EXTENSION.matcher(key);
+        if (!matcher.matches()) {
+            return null;
+        }
+        return matcher.group(1).toLowerCase();
+    }
+
+    public static boolean isSupported(String extension) {
+        return JPG_TYPE.equals(extension) || JPEG_TYPE.equals(extension) || PNG_TYPE.equals(extension);
+    }
+
+    /**
+     * Normalize "jpeg" to "jpg" for ImageIO.write() compatibility.
+     */
+    public static String outputFormat(String extension) {
+        return JPEG_TYPE.equals(extension) ? JPG_TYPE : extension;
+    }
+
+    /**
+     * @return the MIME type for a supported extension, or null otherwise
+     */
+    public static String mimeType(String extension) {
+        if (JPG_TYPE.equals(extension) || JPEG_TYPE.equals(extension)) {
+            return JPG_MIME;
+        } else if (PNG_TYPE.equals(extension)) {
+            return PNG_MIME;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,269 @@
+package vgu.cloud26.thumbnail;
+
+/**
+ * Identifies JPEG, PNG, GIF, BMP and WebP from their magic bytes and reads
+ * the dimensions from the header, without ImageIO and without decoding.
+ * Meant for rejecting mislabelled, corrupt or oversized uploads before any
+ * worker runs; a few hundred KB of the file is always enough, even for JPEGs
+ * with large EXIF/ICC segments in front of the frame header.
+ */
+public final class ImageSniffer {
+
+    public enum Format {
+        JPEG("image/jpeg"),
+        PNG("image/png"),
+        GIF("image/gif"),
+        BMP("image/bmp"),
+        WEBP("image/webp");
+
+        private final String mimeType;
+
+        Format(String mimeType) {
+            this.mimeType = mimeType;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        /**
+         * @return the format a file extension claims, or null for non-image extensions
+         */
+        public static Format forExtension(String extension) {
+            if (extension == null) {
+                return null;
+            }
+            switch (extension) {
+                case ImageFormats.JPG_TYPE:
+                case ImageFormats.JPEG_TYPE:
+                    return JPEG;
+                case ImageFormats.PNG_TYPE:
+                    return PNG;
+                case "gif":
+                    return GIF;
+                case "bmp":
+                    return BMP;
+                case "webp":
+                    return WEBP;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    private ImageSniffer() {
+    }
+
+    public static Result sniff(byte[] data) {
+        return sniff(data, data.length);
+    }
+
+    /**
+     * @param length number of valid bytes at the start of data
+     * @return the format and dimensions, or null when the magic bytes match
+     *         none of the formats. Dimensions are 0 when the header is
+     *         truncated or malformed.
+     */
+    public static Result sniff(byte[] data, int length) {
+        Header header = new Header(data, Math.min(length, data.length));
+        try {
+            if (header.startsWith(0, 0xFF, 0xD8, 0xFF)) {
+                return jpeg(header);
+            }
+            if (header.startsWith(0, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A)) {
+                return header.startsWith(12, 'I', 'H', 'D', 'R')
+                        ? new Result(Format.PNG, header.u32be(16), header.u32be(20))
+                        : new Result(Format.PNG, 0, 0);
+            }
+            if (header.startsWith(0, 'G', 'I', 'F', '8') && (header.startsWith(4, '7', 'a')
+                    || header.startsWith(4, '9', 'a'))) {
+                return new Result(Format.GIF, header.u16le(6), header.u16le(8));
+            }
+            if (header.startsWith(0, 'B', 'M')) {
+                return bmp(header);
+            }
+            if (header.startsWith(0, 'R', 'I', 'F', 'F') && header.startsWith(8, 'W', 'E', 'B', 'P')) {
+                return webp(header);
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // Magic matched but the header is cut short; fall through to the
+            // format-only result below
+        }
+        Format format = magicOnly(header);
+        return format == null ? null : new Result(format, 0, 0);
+    }
+
+    // Walk the marker segments up to the first start-of-frame
+    private static Result jpeg(Header header) {
+        int offset = 2;
+        while (true) {
+            if (header.u8(offset) != 0xFF) {
+                return new Result(Format.JPEG, 0, 0);
+            }
+            int marker = header.u8(offset + 1);
+            if (marker == 0xFF) {
+                // Fill byte before the marker
+                offset++;
+                continue;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD8)) {
+                offset += 2;
+                continue;
+            }
+            // SOF0-SOF15, except DHT (C4), JPG (C8) and DAC (CC)
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                return new Result(Format.JPEG, header.u16be(offset + 7), header.u16be(offset + 5));
+            }
+            if (marker == 0xDA || marker == 0xD9) {
+                // Scan data or end of image before any frame header
+                return new Result(Format.JPEG, 0, 0);
+            }
+            offset += 2 + header.u16be(offset + 2);
+        }
+    }
+
+    private static Result bmp(Header header) {
+        int dibSize = header.u32le(14);
+        if (dibSize == 12) {
+            // OS/2 BITMAPCOREHEADER
+            return new Result(Format.BMP, header.u16le(18), header.u16le(20));
+        }
+        if (dibSize < 40) {
+            return new Result(Format.BMP, 0, 0);
+        }
+        // Negative height means top-down rows
+        return new Result(Format.BMP, header.u32le(18), Math.abs(header.u32le(22)));
+    }
+
+    private static Result webp(Header header) {
+        if (header.startsWith(12, 'V', 'P', '8', ' ')) {
+            // Lossy: 3-byte frame tag, start code 9D 01 2A, then 14-bit sizes
+            if (!header.startsWith(23, 0x9D, 0x01, 0x2A)) {
+                return new Result(Format.WEBP, 0, 0);
+            }
+            return new Result(Format.WEBP, header.u16le(26) & 0x3FFF, header.u16le(28) & 0x3FFF);
+        }
+        if (header.startsWith(12, 'V', 'P', '8', 'L')) {
+            // Lossless: signature 0x2F, then width-1 and height-1 in 14 bits each
+            if (header.u8(20) != 0x2F) {
+                return new Result(Format.WEBP, 0, 0);
+            }
+            int bits = header.u32le(21);
+            return new Result(Format.WEBP, (bits & 0x3FFF) + 1, ((bits >>> 14) & 0x3FFF) + 1);
+        }
+        if (header.startsWith(12, 'V', 'P', '8', 'X')) {
+            // Extended: 24-bit canvas width-1 and height-1
+            return new Result(Format.WEBP, header.u24le(24) + 1, header.u24le(27) + 1);
+        }
+        return new Result(Format.WEBP, 0, 0);
+    }
+
+    private static Format magicOnly(Header header) {
+        if (header.startsWith(0, 0xFF, 0xD8, 0xFF)) {
+            return Format.JPEG;
+        }
+        if (header.startsWith(0, 0x89, 'P', 'N', 'G')) {
+            return Format.PNG;
+        }
+        if (header.startsWith(0, 'G', 'I', 'F', '8')) {
+            return Format.GIF;
+        }
+        if (header.startsWith(0, 'B', 'M')) {
+            return Format.BMP;
+        }
+        if (header.startsWith(0, 'R', 'I', 'F', 'F') && header.startsWith(8, 'W', 'E', 'B', 'P')) {
+            return Format.WEBP;
+        }
+        return null;
+    }
+
+    /**
+     * Sniffed format and header dimensions.
+     */
+    public static final class Result {
+        private final Format format;
+        private final int width;
+        private final int height;
+
+        Result(Format format, int width, int height) {
+            this.format = format;
+            // Negative values come from corrupt 32-bit fields
+            boolean valid = width > 0 && height > 0;
+            this.width = valid ? width : 0;
+            this.height = valid ? height : 0;
+        }
+
+        public Format getFormat() {
+            return format;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * @return false when the header was truncated or malformed
+         */
+        public boolean hasDimensions() {
+            return width > 0;
+        }
+
+        public long getPixels() {
+            return (long) width * height;
+        }
+    }
+
+    // Bounds-checked reads; running past length throws IndexOutOfBoundsException
+    private static final class Header {
+        private final byte[] data;
+        private final int length;
+
+        Header(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+
+        int u8(int offset) {
+            if (offset < 0 || offset >= length) {
+                throw new IndexOutOfBoundsException("Header truncated at " + offset);
+            }
+            return data[offset] & 0xFF;
+        }
+
+        int u16be(int offset) {
+            return (u8(offset) << 8) | u8(offset + 1);
+        }
+
+        int u32be(int offset) {
+            return (u16be(offset) << 16) | u16be(offset + 2);
+        }
+
+        int u16le(int offset) {
+            return u8(offset) | (u8(offset + 1) << 8);
+        }
+
+        int u24le(int offset) {
+            return u16le(offset) | (u8(offset + 2) << 16);
+        }
+
+        int u32le(int offset) {
+            return u16le(offset) | (u16le(offset + 2) << 16);
+        }
+
+        boolean startsWith(int offset, int... magic) {
+            if (offset + magic.length > length) {
+                return false;
+            }
+            for (int i = 0; i < magic.length; i++) {
+                if ((data[offset + i] & 0xFF) != magic[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package vgu.cloud26.thumbnail;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * 64-bit difference hash (dHash): the image is area-averaged to 9x8 grey
+ * levels and each bit records whether a pixel is brighter than its right-hand
+ * neighbour. Re-encoding, rescaling and mild colour changes flip few bits, so
+ * copies of the same photo are a small {@link #distance} apart while unrelated
+ * photos are around 32.
+ *
+ * <p>Stored as a signed long (the Photos table's BIGINT column).
+ */
+public final class PerceptualHash {
+
+    /**
+     * Decoded size the hash is averaged from. The same raster serves
+     * {@link Placeholder#colorGrid}, so one decode yields both.
+     */
+    public static final int SOURCE_DIMENSION = 32;
+
+    private static final int WIDTH = 9;
+    private static final int HEIGHT = 8;
+    private static final ScalingStrategy AREA = new ResamplingScaling(ResamplingScaling.Filter.BOX);
+
+    private PerceptualHash() {
+    }
+
+    /**
+     * Hash an already downscaled raster. Transparency is flattened onto
+     * white, as for the thumbnails.
+     */
+    public static long dHash(BufferedImage image) {
+        BufferedImage grid = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        AREA.scaleInto(image, grid, RasterPool.unpooled());
+        long hash = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            int left = luma(grid.getRGB(0, y));
+            for (int x = 1; x < WIDTH; x++) {
+                int right = luma(grid.getRGB(x, y));
+                hash = (hash << 1) | (left > right ? 1 : 0);
+                left = right;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @return the number of differing bits, 0 to 64
+     */
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    // Rec. 601 weights, scaled by 1000
+    private static int luma(int rgb) {
+        return 299 * ((rgb >> 16) & 0xFF) + 587 * ((rgb >> 8) & 0xFF) + 114 * (rgb & 0xFF);
+    }
+}
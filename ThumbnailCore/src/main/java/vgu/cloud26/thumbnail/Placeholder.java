@@ -0,0 +1,38 @@
+package vgu.cloud26.thumbnail;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Low-quality image placeholder: a 4x4 grid of area-averaged colours,
+ * serialized as 16 row-major {@code rrggbb} hex triplets (96 characters).
+ * Small enough to ship with every photo row, so the gallery can paint a
+ * blurred preview before any thumbnail request returns; the browser renders
+ * it by drawing the grid into a 4x4 canvas and letting CSS upscale it.
+ */
+public final class Placeholder {
+
+    public static final int GRID = 4;
+    /** Length of {@link #colorGrid} output, for sizing the database column. */
+    public static final int LENGTH = GRID * GRID * 6;
+
+    private static final ScalingStrategy AREA = new ResamplingScaling(ResamplingScaling.Filter.BOX);
+
+    private Placeholder() {
+    }
+
+    /**
+     * Area-average an already downscaled raster into the grid. Transparency is
+     * flattened onto white, as for the thumbnails.
+     */
+    public static String colorGrid(BufferedImage image) {
+        BufferedImage grid = new BufferedImage(GRID, GRID, BufferedImage.TYPE_INT_RGB);
+        AREA.scaleInto(image, grid, RasterPool.unpooled());
+        StringBuilder hex = new StringBuilder(LENGTH);
+        for (int y = 0; y < GRID; y++) {
+            for (int x = 0; x < GRID; x++) {
+                hex.append(String.format("%06x", grid.getRGB(x, y) & 0xFFFFFF));
+            }
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,43 @@
+package vgu.cloud26.thumbnail;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+/**
+ * Halves the image with bilinear steps until it is within 2x of the target,
+ * then does the final bilinear step. Less aliasing than a single large-ratio
+ * bilinear draw, at the cost of a few extra intermediate rasters.
+ */
+public class ProgressiveBilinearScaling implements ScalingStrategy {
+
+    private final BilinearScaling finalStep = new BilinearScaling();
+
+    @Override
+    public void scaleInto(BufferedImage src, BufferedImage dst, RasterPool pool) {
+        BufferedImage current = src;
+        int width = src.getWidth();
+        int height = src.getHeight();
+        while (width / 2 >= dst.getWidth() && height / 2 >= dst.getHeight()) {
+            width /= 2;
+            height /= 2;
+            BufferedImage half = pool.acquire(width, height, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D graphics = half.createGraphics();
+            // Src, not SrcOver: the pooled raster may hold stale pixels
+            graphics.setComposite(AlphaComposite.Src);
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(current, 0, 0, width, height, null);
+            graphics.dispose();
+            if (current != src) {
+                pool.release(current);
+            }
+            current = half;
+        }
+        finalStep.scaleInto(current, dst, pool);
+        if (current != src) {
+            pool.release(current);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package vgu.cloud26.thumbnail;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-container pool of BufferedImages keyed by width, height and type, so a
+ * warm container stops allocating a fresh raster for every decode, rotation
+ * and thumbnail. Retained memory is capped; anything released over the cap is
+ * left to the GC. Safe to share across threads.
+ *
+ * <p>Acquired images keep whatever pixels they had: callers must overwrite
+ * every pixel (the decode, orient and scale steps all do).
+ */
+public class RasterPool {
+
+    private final long maxRetainedBytes;
+    private final AtomicLong retainedBytes = new AtomicLong();
+    private final ConcurrentHashMap<Key, Queue<BufferedImage>> free = new ConcurrentHashMap<>();
+
+    public RasterPool(long maxRetainedBytes) {
+        this.maxRetainedBytes = maxRetainedBytes;
+    }
+
+    /**
+     * A pool that never retains anything: acquire always allocates.
+     */
+    public static RasterPool unpooled() {
+        return new RasterPool(0);
+    }
+
+    /**
+     * Whether images of this type can be pooled. Indexed and custom images
+     * carry their own colour model, so they are never shared.
+     */
+    public static boolean isPoolable(int imageType) {
+        return imageType != BufferedImage.TYPE_CUSTOM
+                && imageType != BufferedImage.TYPE_BYTE_INDEXED
+                && imageType != BufferedImage.TYPE_BYTE_BINARY;
+    }
+
+    public BufferedImage acquire(int width, int height, int imageType) {
+        if (maxRetainedBytes > 0 && isPoolable(imageType)) {
+            Queue<BufferedImage> queue = free.get(new Key(width, height, imageType));
+            BufferedImage image = queue == null ? null : queue.poll();
+            if (image != null) {
+                retainedBytes.addAndGet(-sizeOf(image));
+                return image;
+            }
+        }
+        return new BufferedImage(width, height, imageType);
+    }
+
+    /**
+     * Return an image the caller no longer references. Null is ignored.
+     */
+    public void release(BufferedImage image) {
+        if (image == null || maxRetainedBytes <= 0 || !isPoolable(image.getType())) {
+            return;
+        }
+        long size = sizeOf(image);
+        if (retainedBytes.addAndGet(size) > maxRetainedBytes) {
+            retainedBytes.addAndGet(-size);
+            return;
+        }
+        free.computeIfAbsent(new Key(image.getWidth(), image.getHeight(), image.getType()),
+                key -> new ConcurrentLinkedQueue<>()).offer(image);
+    }
+
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+    private static long sizeOf(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    private static final class Key {
+        private final int width;
+        private final int height;
+        private final int imageType;
+
+        Key(int width, int height, int imageType) {
+            this.width = width;
+            this.height = height;
+            this.imageType = imageType;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return width == key.width && height == key.height && imageType == key.imageType;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(width, height, imageType);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package vgu.cloud26.thumbnail;
+
+/**
+ * Inner loop of {@link ResamplingScaling}: acc[i] += weight * src[i].
+ */
+interface RowKernel {
+
+    String VECTOR_MODULE = "jdk.incubator.vector";
+
+    void accumulate(float[] src, float weight, float[] acc, int length);
+
+    /**
+     * The SIMD kernel when the JVM was started with
+     * --add-modules=jdk.incubator.vector, otherwise the scalar loop. The vector
+     * class is loaded reflectively so nothing links against the incubator
+     * module when it is absent.
+     */
+    static RowKernel select(boolean allowVector) {
+        if (allowVector && ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent()) {
+            try {
+                return (RowKernel) Class.forName("vgu.cloud26.thumbnail.VectorRowKernel")
+                        .getDeclaredConstructor()
+                        .newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // Fall through to the scalar loop
+            }
+        }
+        return new ScalarRowKernel();
+    }
+}
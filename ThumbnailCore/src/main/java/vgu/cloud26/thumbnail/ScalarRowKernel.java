@@ -0,0 +1,11 @@
+package vgu.cloud26.thumbnail;
+
+final class ScalarRowKernel implements RowKernel {
+
+    @Override
+    public void accumulate(float[] src, float weight, float[] acc, int length) {
+        for (int i = 0; i < length; i++) {
+            acc[i] += weight * src[i];
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package vgu.cloud26.thumbnail;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Pluggable downscale step of the {@link ThumbnailEngine}.
+ */
+public interface ScalingStrategy {
+
+    /**
+     * Scale the source onto every pixel of dst, an opaque TYPE_INT_RGB image
+     * (transparent pixels are flattened onto white). dst may come from the
+     * pool with stale pixels; scratch rasters are taken from and returned to
+     * the pool.
+     */
+    void scaleInto(BufferedImage src, BufferedImage dst, RasterPool pool);
+
+    /**
+     * Scale the source to exactly targetWidth x targetHeight in a new image.
+     */
+    default BufferedImage scale(BufferedImage src, int targetWidth, int targetHeight) {
+        BufferedImage dst = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_INT_RGB);
+        scaleInto(src, dst, RasterPool.unpooled());
+        return dst;
+    }
+
+    /**
+     * Resolve a strategy by its configuration name (e.g. the SCALING_STRATEGY
+     * environment variable). Unknown or empty names fall back to bilinear.
+     */
+    static ScalingStrategy forName(String name) {
+        if (name == null || name.isEmpty()) {
+            return new BilinearScaling();
+        }
+        switch (name.toLowerCase()) {
+            case "progressive":
+                return new ProgressiveBilinearScaling();
+            case "area":
+            case "box":
+                return new ResamplingScaling(ResamplingScaling.Filter.BOX);
+            case "lanczos":
+                return new ResamplingScaling(ResamplingScaling.Filter.LANCZOS3);
+            case "bilinear":
+            default:
+                return new BilinearScaling();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package vgu.cloud26.thumbnail;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sprite sheet of up to {@code capacity} thumbnails in a grid of square
+ * cells, plus the rectangle each key occupies. Keys can be added and removed
+ * one at a time, so a cached sheet is updated incrementally instead of
+ * re-packed: a removed key leaves a white cell that the next added key reuses.
+ *
+ * <p>Each thumbnail sits at the top-left of its cell at its own size; the
+ * rectangles give the exact crop. Not thread-safe.
+ */
+public final class ThumbnailAtlas {
+
+    private final int cellSize;
+    private final int columns;
+    private final String[] slots;
+    private final Map<String, Rectangle> cells = new LinkedHashMap<>();
+    private final BufferedImage image;
+
+    public ThumbnailAtlas(int cellSize, int columns, int capacity) {
+        this.cellSize = cellSize;
+        this.columns = columns;
+        this.slots = new String[capacity];
+        int rows = (capacity + columns - 1) / columns;
+        this.image = new BufferedImage(columns * cellSize, rows * cellSize, BufferedImage.TYPE_INT_RGB);
+        clear(0, 0, image.getWidth(), image.getHeight());
+    }
+
+    /**
+     * Rebuild an atlas from a previously encoded sheet and its rectangles. A
+     * sheet with a different geometry (the layout constants changed) yields
+     * an empty atlas, so everything is packed again.
+     */
+    public static ThumbnailAtlas restore(BufferedImage sheet, Map<String, Rectangle> cells, int cellSize,
+            int columns, int capacity) {
+        ThumbnailAtlas atlas = new ThumbnailAtlas(cellSize, columns, capacity);
+        if (sheet == null || sheet.getWidth() != atlas.image.getWidth()
+                || sheet.getHeight() != atlas.image.getHeight()) {
+            return atlas;
+        }
+        Graphics2D graphics = atlas.image.createGraphics();
+        graphics.drawImage(sheet, 0, 0, null);
+        graphics.dispose();
+        for (Map.Entry<String, Rectangle> cell : cells.entrySet()) {
+            int slot = atlas.slotAt(cell.getValue());
+            if (slot >= 0 && atlas.slots[slot] == null) {
+                atlas.slots[slot] = cell.getKey();
+                atlas.cells.put(cell.getKey(), new Rectangle(cell.getValue()));
+            }
+        }
+        return atlas;
+    }
+
+    public boolean contains(String key) {
+        return cells.containsKey(key);
+    }
+
+    public Set<String> keys() {
+        return Collections.unmodifiableSet(cells.keySet());
+    }
+
+    /**
+     * @return key -> crop rectangle within {@link #getImage}
+     */
+    public Map<String, Rectangle> getCells() {
+        return Collections.unmodifiableMap(cells);
+    }
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    public boolean isFull() {
+        return cells.size() == slots.length;
+    }
+
+    /**
+     * Place a thumbnail in the first free cell. Thumbnails larger than a cell
+     * are scaled down to fit, keeping the aspect ratio.
+     *
+     * @return the rectangle it occupies, or null when the atlas is full
+     */
+    public Rectangle add(String key, BufferedImage thumbnail) {
+        remove(key);
+        for (int slot = 0; slot < slots.length; slot++) {
+            if (slots[slot] != null) {
+                continue;
+            }
+            int[] size = thumbnail.getWidth() > cellSize || thumbnail.getHeight() > cellSize
+                    ? ThumbnailEngine.targetSize(thumbnail.getWidth(), thumbnail.getHeight(), cellSize)
+                    : new int[] {thumbnail.getWidth(), thumbnail.getHeight()};
+            Rectangle cell = new Rectangle((slot % columns) * cellSize, (slot / columns) * cellSize,
+                    size[0], size[1]);
+            Graphics2D graphics = image.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(thumbnail, cell.x, cell.y, cell.width, cell.height, Color.WHITE, null);
+            graphics.dispose();
+            slots[slot] = key;
+            cells.put(key, cell);
+            return cell;
+        }
+        return null;
+    }
+
+    /**
+     * Blank a key's cell and free it for reuse. Unknown keys are ignored.
+     */
+    public void remove(String key) {
+        Rectangle cell = cells.remove(key);
+        if (cell == null) {
+            return;
+        }
+        slots[slotAt(cell)] = null;
+        clear(cell.x, cell.y, cellSize, cellSize);
+    }
+
+    private int slotAt(Rectangle cell) {
+        if (cell.x % cellSize != 0 || cell.y % cellSize != 0) {
+            return -1;
+        }
+        int slot = (cell.y / cellSize) * columns + cell.x / cellSize;
+        return cell.x / cellSize < columns && slot < slots.length ? slot : -1;
+    }
+
+    private void clear(int x, int y, int width, int height) {
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(x, y, width, height);
+        graphics.dispose();
+    }
+}
@@ -0,0 +1,484 @@
+package vgu.cloud26.thumbnail;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * decode -> orient -> scale -> encode pipeline shared by LambdaResize,
+ * LambdaResizeWrapper and LambdaGetResizedImage. Instances are safe to share
+ * across threads.
+ *
+ * <p>Rasters come from a {@link RasterPool}; images returned by
+ * {@link #thumbnail}, {@link #decode}, {@link #orient} and {@link #scale}
+ * should be handed back through {@link #release} once encoded. Forgetting to
+ * only costs the reuse, not correctness.
+ */
+public class ThumbnailEngine {
+
+    static {
+        // ImageIO otherwise buffers every stream through a temp file in /tmp
+        ImageIO.setUseCache(false);
+    }
+
+    // Truecolour PNG is kept over JPEG up to this many times the size
+    private static final int MAX_LOSSLESS_PREMIUM = 2;
+
+    private final ScalingStrategy scalingStrategy;
+    private final RasterPool rasterPool;
+    private final EncoderProfiles encoderProfiles;
+    private final boolean contentAwareFormat;
+
+    public ThumbnailEngine(ScalingStrategy scalingStrategy) {
+        this(scalingStrategy, RasterPool.unpooled());
+    }
+
+    public ThumbnailEngine(ScalingStrategy scalingStrategy, RasterPool rasterPool) {
+        this(scalingStrategy, rasterPool, EncoderProfiles.parse(null));
+    }
+
+    public ThumbnailEngine(ScalingStrategy scalingStrategy, RasterPool rasterPool,
+            EncoderProfiles encoderProfiles) {
+        this(scalingStrategy, rasterPool, encoderProfiles, false);
+    }
+
+    /**
+     * @param contentAwareFormat let {@link #encodeDerivative} pick JPEG or PNG
+     *        from the pixels instead of keeping the source format
+     */
+    public ThumbnailEngine(ScalingStrategy scalingStrategy, RasterPool rasterPool,
+            EncoderProfiles encoderProfiles, boolean contentAwareFormat) {
+        this.scalingStrategy = scalingStrategy;
+        this.rasterPool = rasterPool;
+        this.encoderProfiles = encoderProfiles;
+        this.contentAwareFormat = contentAwareFormat;
+    }
+
+    /**
+     * Engine configured from the SCALING_STRATEGY, RASTER_POOL_MB (default 32),
+     * ENCODER_PROFILES and OUTPUT_FORMAT ("auto" or "source", the default)
+     * environment variables.
+     */
+    public static ThumbnailEngine fromEnvironment() {
+        String poolMegabytes = System.getenv("RASTER_POOL_MB");
+        long maxRetainedBytes = (poolMegabytes == null || poolMegabytes.isEmpty() ? 32 : Long.parseLong(poolMegabytes))
+                * 1024 * 1024;
+        return new ThumbnailEngine(ScalingStrategy.forName(System.getenv("SCALING_STRATEGY")),
+                new RasterPool(maxRetainedBytes),
+                EncoderProfiles.parse(System.getenv("ENCODER_PROFILES")),
+                "auto".equalsIgnoreCase(System.getenv("OUTPUT_FORMAT")));
+    }
+
+    public ScalingStrategy getScalingStrategy() {
+        return scalingStrategy;
+    }
+
+    public RasterPool getRasterPool() {
+        return rasterPool;
+    }
+
+    public EncoderProfiles getEncoderProfiles() {
+        return encoderProfiles;
+    }
+
+    public boolean isContentAwareFormat() {
+        return contentAwareFormat;
+    }
+
+    /**
+     * Hand an image obtained from this engine back to the pool. The caller must
+     * not touch it afterwards. Null is ignored.
+     */
+    public void release(BufferedImage image) {
+        rasterPool.release(image);
+    }
+
+    /**
+     * Convenience for the single-size handlers: decode, orient and scale.
+     *
+     * @return the thumbnail, or null when no ImageReader understands the data
+     */
+    public BufferedImage thumbnail(InputStream input, int maxDimension, int memoryLimitInMB) throws IOException {
+        DecodedImage decoded = decode(input, maxDimension, memoryLimitInMB);
+        if (decoded == null) {
+            return null;
+        }
+        return thumbnail(decoded, maxDimension);
+    }
+
+    /**
+     * Orient and scale a decode made with {@link #decode(InputStream, int, int)},
+     * releasing the intermediates.
+     */
+    public BufferedImage thumbnail(DecodedImage decoded, int maxDimension) {
+        BufferedImage oriented = orient(decoded.getImage(), decoded.getOrientation());
+        if (oriented != decoded.getImage()) {
+            release(decoded.getImage());
+        }
+        BufferedImage thumbnail = scale(oriented, maxDimension);
+        release(oriented);
+        return thumbnail;
+    }
+
+    /**
+     * Read only the header to get the dimensions, then decode with source
+     * subsampling so a 24MP original is never expanded to full-size ARGB just
+     * to produce a thumbnail. JPEGs whose EXIF thumbnail is big enough for
+     * maxDimension are not decoded at all (see {@link #decodeEmbedded}).
+     *
+     * @return the decoded image, or null when no ImageReader understands the data
+     */
+    public DecodedImage decode(InputStream input, int maxDimension, int memoryLimitInMB) throws IOException {
+        return decode(input, Transform.contain(maxDimension), memoryLimitInMB);
+    }
+
+    /**
+     * As {@link #decode(InputStream, int, int)}, keeping as many source pixels
+     * as the transform's output needs.
+     */
+    public DecodedImage decode(InputStream input, Transform transform, int memoryLimitInMB) throws IOException {
+        try (ImageInputStream imageStream = ImageIO.createImageInputStream(input)) {
+            if (imageStream == null) {
+                return null;
+            }
+            ImageReader reader = Codecs.reader(imageStream);
+            if (reader == null) {
+                return null;
+            }
+            try {
+                boolean jpeg = "jpeg".equalsIgnoreCase(reader.getFormatName());
+                // Metadata is only needed for the EXIF orientation of JPEGs
+                reader.setInput(imageStream, true, !jpeg);
+                int srcWidth = reader.getWidth(0);
+                int srcHeight = reader.getHeight(0);
+                byte[] app1 = jpeg ? ExifReader.findApp1(reader.getImageMetadata(0)) : null;
+                int orientation = ExifReader.orientation(app1);
+                // The transform applies to the upright image
+                boolean swap = orientation >= 5 && orientation <= 8;
+                int maxDimension = transform.requiredLongestEdge(swap ? srcHeight : srcWidth,
+                        swap ? srcWidth : srcHeight);
+                DecodedImage embedded = decodeEmbedded(app1, srcWidth, srcHeight, maxDimension, orientation);
+                if (embedded != null) {
+                    return embedded;
+                }
+                int subsampling = subsamplingFactor(srcWidth, srcHeight, maxDimension, memoryLimitInMB);
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                param.setDestination(pooledDestination(reader,
+                        (srcWidth + subsampling - 1) / subsampling, (srcHeight + subsampling - 1) / subsampling));
+                BufferedImage image = reader.read(0, param);
+                return new DecodedImage(image, srcWidth, srcHeight, subsampling, orientation);
+            } finally {
+                Codecs.release(reader);
+            }
+        }
+    }
+
+    /**
+     * Decode the EXIF thumbnail in place of the full frame when it covers the
+     * target: at least maxDimension on its longest edge, and the main image's
+     * aspect ratio to within a pixel. The latter rules out letterboxed 160x120
+     * thumbnails of 16:9 frames and thumbnails left stale by editors that
+     * rotated or cropped the pixels.
+     *
+     * @return the thumbnail, or null to fall back to the full decode
+     */
+    DecodedImage decodeEmbedded(byte[] app1, int srcWidth, int srcHeight, int maxDimension, int orientation) {
+        byte[] jpeg = ExifReader.embeddedThumbnail(app1);
+        if (jpeg == null) {
+            return null;
+        }
+        try (ImageInputStream imageStream = ImageIO.createImageInputStream(new ByteArrayInputStream(jpeg))) {
+            ImageReader reader = Codecs.reader(imageStream);
+            if (reader == null) {
+                return null;
+            }
+            try {
+                reader.setInput(imageStream, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if (Math.max(width, height) < maxDimension
+                        || Math.abs((long) height * srcWidth - (long) width * srcHeight) > srcWidth) {
+                    return null;
+                }
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setDestination(pooledDestination(reader, width, height));
+                BufferedImage image = reader.read(0, param);
+                return new DecodedImage(image, srcWidth, srcHeight, Math.max(1, srcWidth / width), orientation, true);
+            } finally {
+                Codecs.release(reader);
+            }
+        } catch (IOException e) {
+            // A corrupt embedded thumbnail must not fail an otherwise valid image
+            return null;
+        }
+    }
+
+    // Decode straight into a pooled raster of the type the reader would have
+    // allocated anyway; null (let the reader allocate) for indexed or custom types
+    BufferedImage pooledDestination(ImageReader reader, int width, int height) throws IOException {
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        if (types == null || !types.hasNext()) {
+            return null;
+        }
+        int imageType = types.next().getBufferedImageType();
+        return RasterPool.isPoolable(imageType) ? rasterPool.acquire(width, height, imageType) : null;
+    }
+
+    /**
+     * Keep at least 2x the target on the longest edge (so the downscale still has
+     * enough pixels), then keep increasing the factor until the decoded raster
+     * fits in a quarter of the given memory.
+     */
+    public static int subsamplingFactor(int srcWidth, int srcHeight, int maxDimension, int memoryLimitInMB) {
+        int longestEdge = Math.max(srcWidth, srcHeight);
+        int subsampling = Math.max(1, longestEdge / (maxDimension * 2));
+        long budgetBytes = (long) memoryLimitInMB * 1024 * 1024 / 4;
+        while (decodedBytes(srcWidth, srcHeight, subsampling) > budgetBytes && subsampling < longestEdge) {
+            subsampling++;
+        }
+        return subsampling;
+    }
+
+    private static long decodedBytes(int srcWidth, int srcHeight, int subsampling) {
+        long width = (srcWidth + subsampling - 1) / subsampling;
+        long height = (srcHeight + subsampling - 1) / subsampling;
+        return width * height * 4;
+    }
+
+    /**
+     * Apply an EXIF orientation (1-8) so the pixels are upright.
+     */
+    public BufferedImage orient(BufferedImage image, int orientation) {
+        if (orientation <= ExifReader.ORIENTATION_NORMAL || orientation > 8) {
+            return image;
+        }
+        int w = image.getWidth();
+        int h = image.getHeight();
+        AffineTransform transform;
+        switch (orientation) {
+            case 2: // mirror horizontal
+                transform = new AffineTransform(-1, 0, 0, 1, w, 0);
+                break;
+            case 3: // rotate 180
+                transform = new AffineTransform(-1, 0, 0, -1, w, h);
+                break;
+            case 4: // mirror vertical
+                transform = new AffineTransform(1, 0, 0, -1, 0, h);
+                break;
+            case 5: // transpose
+                transform = new AffineTransform(0, 1, 1, 0, 0, 0);
+                break;
+            case 6: // rotate 90 clockwise
+                transform = new AffineTransform(0, 1, -1, 0, h, 0);
+                break;
+            case 7: // transverse
+                transform = new AffineTransform(0, -1, -1, 0, h, w);
+                break;
+            default: // 8: rotate 270 clockwise
+                transform = new AffineTransform(0, -1, 1, 0, 0, w);
+                break;
+        }
+        boolean swap = orientation >= 5;
+        int type = image.getType() == BufferedImage.TYPE_CUSTOM ? BufferedImage.TYPE_INT_ARGB : image.getType();
+        BufferedImage oriented = rasterPool.acquire(swap ? h : w, swap ? w : h, type);
+        Graphics2D graphics = oriented.createGraphics();
+        // Src, not SrcOver: the pooled raster may hold stale pixels
+        graphics.setComposite(AlphaComposite.Src);
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+        graphics.drawImage(image, transform, null);
+        graphics.dispose();
+        return oriented;
+    }
+
+    /**
+     * Decode, orient and resize to a transform: contain scales into the box,
+     * cover scales to fill it and centre-crops the overflow.
+     *
+     * @return the image, or null when no ImageReader understands the data
+     */
+    public BufferedImage transform(InputStream input, Transform transform, int memoryLimitInMB)
+            throws IOException {
+        DecodedImage decoded = decode(input, transform, memoryLimitInMB);
+        if (decoded == null) {
+            return null;
+        }
+        return transform(decoded, transform);
+    }
+
+    /**
+     * As {@link #transform(InputStream, Transform, int)}, from a decode made
+     * with {@link #decode(InputStream, Transform, int)}, so the caller can look
+     * at the source pixels first (e.g. {@link FormatClassifier#isTranslucent}).
+     * The decoded image is released.
+     */
+    public BufferedImage transform(DecodedImage decoded, Transform transform) {
+        BufferedImage oriented = orient(decoded.getImage(), decoded.getOrientation());
+        if (oriented != decoded.getImage()) {
+            release(decoded.getImage());
+        }
+        int[] size = transform.outputSize(oriented.getWidth(), oriented.getHeight());
+        BufferedImage source = oriented;
+        if (transform.getFit() == Transform.Fit.COVER) {
+            source = crop(oriented, size[0], size[1]);
+            if (source != oriented) {
+                release(oriented);
+            }
+        }
+        BufferedImage result = rasterPool.acquire(size[0], size[1], BufferedImage.TYPE_INT_RGB);
+        scalingStrategy.scaleInto(source, result, rasterPool);
+        release(source);
+        return result;
+    }
+
+    // Centre region with the aspect ratio of width x height, copied into its
+    // own raster: the scalers read rows from the start of the data buffer, so
+    // a getSubimage view would not do
+    private BufferedImage crop(BufferedImage image, int width, int height) {
+        int srcWidth = image.getWidth();
+        int srcHeight = image.getHeight();
+        int cropWidth = srcWidth;
+        int cropHeight = srcHeight;
+        if ((long) srcWidth * height > (long) srcHeight * width) {
+            cropWidth = Math.max(1, (int) Math.round((double) srcHeight * width / height));
+        } else {
+            cropHeight = Math.max(1, (int) Math.round((double) srcWidth * height / width));
+        }
+        if (cropWidth == srcWidth && cropHeight == srcHeight) {
+            return image;
+        }
+        // A new indexed raster would get the default palette, not the source's
+        int type = image.getType() == BufferedImage.TYPE_CUSTOM || image.getColorModel() instanceof IndexColorModel
+                ? BufferedImage.TYPE_INT_ARGB : image.getType();
+        BufferedImage cropped = rasterPool.acquire(cropWidth, cropHeight, type);
+        Graphics2D graphics = cropped.createGraphics();
+        // Src, not SrcOver: the pooled raster may hold stale pixels
+        graphics.setComposite(AlphaComposite.Src);
+        graphics.drawImage(image, -(srcWidth - cropWidth) / 2, -(srcHeight - cropHeight) / 2, null);
+        graphics.dispose();
+        return cropped;
+    }
+
+    /**
+     * Scale so the longest edge is maxDimension, keeping the aspect ratio.
+     */
+    public BufferedImage scale(BufferedImage src, int maxDimension) {
+        return scale(src, src, maxDimension);
+    }
+
+    /**
+     * Cascade variant: the target size is computed from the reference image so
+     * every size keeps its exact aspect ratio, but pixels come from closest (a
+     * larger derivative) whenever it is big enough.
+     */
+    public BufferedImage scale(BufferedImage reference, BufferedImage closest, int maxDimension) {
+        int[] size = targetSize(reference.getWidth(), reference.getHeight(), maxDimension);
+        BufferedImage drawFrom = closest;
+        if (closest.getWidth() < size[0] || closest.getHeight() < size[1]) {
+            drawFrom = reference;
+        }
+        BufferedImage scaled = rasterPool.acquire(size[0], size[1], BufferedImage.TYPE_INT_RGB);
+        scalingStrategy.scaleInto(drawFrom, scaled, rasterPool);
+        return scaled;
+    }
+
+    /**
+     * @return {width, height} with the longest edge equal to maxDimension, or
+     *         the source size when that is already smaller (never upscaled)
+     */
+    public static int[] targetSize(int srcWidth, int srcHeight, int maxDimension) {
+        float scalingFactor = Math.min(1f,
+                Math.min((float) maxDimension / srcWidth, (float) maxDimension / srcHeight));
+        int width = Math.max(1, (int) (scalingFactor * srcWidth));
+        int height = Math.max(1, (int) (scalingFactor * srcHeight));
+        return new int[] {width, height};
+    }
+
+    /**
+     * Encode with the default encoder profile.
+     */
+    public byte[] encode(BufferedImage image, String format) throws IOException {
+        return encode(image, format, encoderProfiles.getDefault());
+    }
+
+    /**
+     * Encode with the profile configured for the derivative size.
+     */
+    public byte[] encode(BufferedImage image, String format, int size) throws IOException {
+        return encode(image, format, encoderProfiles.forSize(size));
+    }
+
+    /**
+     * Encode with the thread's cached writer into its reusable buffer; only the
+     * returned array is allocated per call.
+     */
+    public byte[] encode(BufferedImage image, String format, EncoderProfile profile) throws IOException {
+        ImageWriter writer = Codecs.writer(format);
+        if (writer == null) {
+            throw new IOException("No ImageIO writer for format " + format);
+        }
+        Codecs.OutputBuffer buffer = Codecs.buffer();
+        try (ImageOutputStream imageStream = new MemoryCacheImageOutputStream(buffer)) {
+            writer.setOutput(imageStream);
+            writer.write(null, new IIOImage(image, null, null), profile.writeParam(writer, format));
+        } finally {
+            Codecs.release(format, writer);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Encode a derivative with the profile for its size. With content-aware
+     * format on, {@link FormatClassifier} picks the encoding; otherwise the
+     * source format is kept. Callers must store the returned extension's
+     * Content-Type, not the source's.
+     *
+     * @param translucent whether the source had visible transparency (see
+     *        {@link FormatClassifier#isTranslucent}); false if unknown
+     */
+    public EncodedImage encodeDerivative(BufferedImage image, String sourceExtension, int size, boolean translucent)
+            throws IOException {
+        if (!contentAwareFormat) {
+            String format = ImageFormats.outputFormat(sourceExtension);
+            return new EncodedImage(encode(image, format, size), format);
+        }
+        FormatClassifier.Result choice = FormatClassifier.classify(image, translucent);
+        switch (choice.getFormat()) {
+            case JPEG:
+                return new EncodedImage(encode(image, ImageFormats.JPG_TYPE, size), ImageFormats.JPG_TYPE);
+            case PNG_PALETTE:
+                return new EncodedImage(encode(FormatClassifier.toIndexed(image, choice.getPalette()),
+                        ImageFormats.PNG_TYPE, size), ImageFormats.PNG_TYPE);
+            default:
+                byte[] png = encode(image, ImageFormats.PNG_TYPE, size);
+                if (translucent) {
+                    return new EncodedImage(png, ImageFormats.PNG_TYPE);
+                }
+                // Smooth but many-coloured content (upscaled small originals,
+                // soft-focus photos) can fool the classifier; lossless is worth
+                // a premium, not an order of magnitude
+                byte[] jpeg = encode(image, ImageFormats.JPG_TYPE, size);
+                return png.length > MAX_LOSSLESS_PREMIUM * jpeg.length
+                        ? new EncodedImage(jpeg, ImageFormats.JPG_TYPE)
+                        : new EncodedImage(png, ImageFormats.PNG_TYPE);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package vgu.cloud26.thumbnail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Output geometry and format of a derivative: a width x height box, a fit
+ * mode and an optional output format.
+ *
+ * <ul>
+ * <li>contain: the whole image scaled to fit inside the box; a 0 dimension
+ * is unbounded</li>
+ * <li>cover: the box is filled exactly and the overflow centre-cropped</li>
+ * </ul>
+ *
+ * A null format leaves the choice to {@link ThumbnailEngine#encodeDerivative}.
+ * {@link #parse} snaps requested dimensions up to an allow-list, so each
+ * original has a bounded number of distinct derivatives, each stored under
+ * its {@link #canonicalKey}.
+ */
+public final class Transform {
+
+    public enum Fit {
+        CONTAIN,
+        COVER
+    }
+
+    // LambdaResize keeps the legacy "resized-<key>" name for this size
+    private static final int LEGACY_SIZE = 100;
+
+    private final int width;
+    private final int height;
+    private final Fit fit;
+    private final String format;
+
+    private Transform(int width, int height, Fit fit, String format) {
+        this.width = width;
+        this.height = height;
+        this.fit = fit;
+        this.format = format;
+    }
+
+    /**
+     * The fixed derivatives: longest edge maxDimension, default format.
+     */
+    public static Transform contain(int maxDimension) {
+        return new Transform(maxDimension, maxDimension, Fit.CONTAIN, null);
+    }
+
+    /**
+     * Normalize request parameters; any of them may be null.
+     *
+     * @param fit "contain" (default) or "cover"; cover with one dimension is square
+     * @param format "jpg", "jpeg", "png", or "auto" (default)
+     * @param allowedSizes sizes a dimension is snapped up to; larger requests get the largest
+     * @throws IllegalArgumentException for unknown values or when neither dimension is given
+     */
+    public static Transform parse(String width, String height, String fit, String format,
+            List<Integer> allowedSizes) {
+        List<Integer> sizes = new ArrayList<>(allowedSizes);
+        Collections.sort(sizes);
+        int w = snap(dimension(width), sizes);
+        int h = snap(dimension(height), sizes);
+        if (w == 0 && h == 0) {
+            throw new IllegalArgumentException("Width or height required");
+        }
+
+        Fit parsedFit;
+        if (fit == null || fit.isEmpty() || "contain".equalsIgnoreCase(fit)) {
+            parsedFit = Fit.CONTAIN;
+        } else if ("cover".equalsIgnoreCase(fit)) {
+            parsedFit = Fit.COVER;
+            w = w == 0 ? h : w;
+            h = h == 0 ? w : h;
+        } else {
+            throw new IllegalArgumentException("Unknown fit: " + fit);
+        }
+
+        String parsedFormat = null;
+        if (format != null && !format.isEmpty() && !"auto".equalsIgnoreCase(format)) {
+            parsedFormat = ImageFormats.outputFormat(format.toLowerCase(Locale.ROOT));
+            if (!ImageFormats.isSupported(parsedFormat)) {
+                throw new IllegalArgumentException("Unknown format: " + format);
+            }
+        }
+        return new Transform(w, h, parsedFit, parsedFormat);
+    }
+
+    private static int dimension(String value) {
+        if (value == null || value.isEmpty()) {
+            return 0;
+        }
+        int dimension = Integer.parseInt(value.trim());
+        if (dimension < 0) {
+            throw new IllegalArgumentException("Negative dimension: " + value);
+        }
+        return dimension;
+    }
+
+    private static int snap(int requested, List<Integer> sortedSizes) {
+        if (requested == 0) {
+            return 0;
+        }
+        for (int size : sortedSizes) {
+            if (size >= requested) {
+                return size;
+            }
+        }
+        return sortedSizes.get(sortedSizes.size() - 1);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public Fit getFit() {
+        return fit;
+    }
+
+    /**
+     * @return "jpg", "png", or null for the engine's default choice
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * @return the larger box dimension, for picking the encoder profile
+     */
+    public int getSize() {
+        return Math.max(width, height);
+    }
+
+    /**
+     * @return {width, height} of the output for an upright source; contain
+     *         never upscales, as {@link ThumbnailEngine#targetSize}, so a box
+     *         larger than the source gives the source size
+     */
+    public int[] outputSize(int srcWidth, int srcHeight) {
+        if (fit == Fit.COVER) {
+            return new int[] {width, height};
+        }
+        float scalingFactor = Math.min(1f, Math.min(width == 0 ? Float.MAX_VALUE : (float) width / srcWidth,
+                height == 0 ? Float.MAX_VALUE : (float) height / srcHeight));
+        return new int[] {Math.max(1, (int) (scalingFactor * srcWidth)),
+                Math.max(1, (int) (scalingFactor * srcHeight))};
+    }
+
+    /**
+     * Longest edge the decoded source must keep for this output; cover needs
+     * more than the box when the aspect ratios differ.
+     */
+    int requiredLongestEdge(int srcWidth, int srcHeight) {
+        if (fit == Fit.CONTAIN) {
+            int[] size = outputSize(srcWidth, srcHeight);
+            return Math.max(size[0], size[1]);
+        }
+        double scalingFactor = Math.max((double) width / srcWidth, (double) height / srcHeight);
+        return (int) Math.ceil(scalingFactor * Math.max(srcWidth, srcHeight));
+    }
+
+    /**
+     * Key of this derivative in the resized bucket. Square contain boxes in
+     * the default format share LambdaResize's "resized-<key>" and
+     * "resized/<size>/<key>" objects; everything else lives under
+     * "transformed/<key>/", so deleting an original can clear it by prefix.
+     */
+    public String canonicalKey(String originalKey) {
+        if (fit == Fit.CONTAIN && width == height && format == null) {
+            return width == LEGACY_SIZE ? "resized-" + originalKey : "resized/" + width + "/" + originalKey;
+        }
+        return transformedPrefix(originalKey) + fit.name().toLowerCase(Locale.ROOT) + "-" + width + "x" + height
+                + "." + (format == null ? "auto" : format);
+    }
+
+    /**
+     * Prefix of all non-shared derivatives of an original.
+     */
+    public static String transformedPrefix(String originalKey) {
+        return "transformed/" + originalKey + "/";
+    }
+}
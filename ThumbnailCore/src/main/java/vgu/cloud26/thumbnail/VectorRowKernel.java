@@ -0,0 +1,30 @@
+package vgu.cloud26.thumbnail;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link RowKernel} using the widest float vectors the CPU supports. Only
+ * loaded through {@link RowKernel#select} when jdk.incubator.vector is present.
+ */
+final class VectorRowKernel implements RowKernel {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    @Override
+    public void accumulate(float[] src, float weight, float[] acc, int length) {
+        FloatVector w = FloatVector.broadcast(SPECIES, weight);
+        int upper = SPECIES.loopBound(length);
+        int i = 0;
+        // mul + add rather than fma: fma is emulated (slowly) on CPUs without FMA units
+        for (; i < upper; i += SPECIES.length()) {
+            FloatVector sum = FloatVector.fromArray(SPECIES, src, i)
+                    .mul(w)
+                    .add(FloatVector.fromArray(SPECIES, acc, i));
+            sum.intoArray(acc, i);
+        }
+        for (; i < length; i++) {
+            acc[i] += weight * src[i];
+        }
+    }
+}
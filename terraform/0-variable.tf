@@ -40,6 +40,84 @@ variable "lambda_memory" {
   default     = 512
 }
 
+variable "derivative_sizes" {
+  description = "Comma-separated longest-edge sizes (px) generated for every uploaded image"
+  type        = string
+  default     = "100,320,1024"
+}
+
+variable "tile_min_bytes" {
+  description = "Originals of at least this many bytes also get a Deep Zoom tile pyramid under tiles/<key>/"
+  type        = number
+  default     = 10485760
+}
+
+variable "tile_memory" {
+  description = "Memory (MB) of the tiling function; the whole original is decoded once, so size it for the largest expected upload"
+  type        = number
+  default     = 2048
+}
+
+variable "tile_timeout" {
+  description = "Timeout (seconds) of the tiling function"
+  type        = number
+  default     = 300
+}
+
+variable "scaling_strategy" {
+  description = "Downscale algorithm used by the resize functions (bilinear, progressive, area or lanczos)"
+  type        = string
+  default     = "area"
+}
+
+variable "encoder_profiles" {
+  description = "Per-derivative encoder settings, <size>=<options> entries separated by ';' (see EncoderProfiles)"
+  type        = string
+  default     = "100=quality:0.7,huffman,png:9;default=quality:0.75,huffman,progressive,png:9"
+}
+
+variable "output_format" {
+  description = "Derivative encoding: auto picks JPEG or PNG from the thumbnail's content, source keeps the original format"
+  type        = string
+  default     = "auto"
+}
+
+variable "max_image_pixels" {
+  description = "Uploads whose header claims more pixels than this are rejected by the upload orchestrator"
+  type        = number
+  default     = 100000000
+}
+
+variable "presign_ttl_seconds" {
+  description = "Lifetime of the presigned S3 URLs returned by the download and thumbnail functions (delivery=url|redirect)"
+  type        = number
+  default     = 300
+}
+
+variable "thumbnail_cache_percent" {
+  description = "Share of the thumbnail function's memory (percent) used to keep hot thumbnails in memory per container; 0 disables it"
+  type        = number
+  default     = 10
+}
+
+variable "duplicate_mode" {
+  description = "What the upload orchestrator does with near-duplicate uploads: flag (list them in the result) or reject (409)"
+  type        = string
+  default     = "flag"
+}
+
+variable "duplicate_max_distance" {
+  description = "Perceptual-hash bits an upload may differ by and still count as a near-duplicate"
+  type        = number
+  default     = 4
+}
+
+variable "banded_decode_min_pixels" {
+  description = "Originals with at least this many pixels are decoded in parallel bands by the resize wrapper"
+  type        = number
+  default     = 16000000
+}
+
 variable "lambda_runtime" {
   description = "Lambda runtime"
   type        = string
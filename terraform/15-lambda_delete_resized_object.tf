@@ -12,6 +12,7 @@ resource "aws_lambda_function" "delete_resized_object" {
   environment {
     variables = {
       RESIZED_BUCKET_NAME = aws_s3_bucket.resized_bucket.id
+      DERIVATIVE_SIZES    = var.derivative_sizes
     }
   }
 }
@@ -3,7 +3,7 @@ resource "aws_lambda_function" "get_resized_image" {
   filename         = "${path.module}/../LambdaGetResizedImage/target/LambdaGetResizedImage-1.0-SNAPSHOT.jar"
   function_name    = "LambdaGetResizedImage"
   role             = aws_iam_role.lambda_role.arn
-  handler          = "vgu.cloud26.LambdaGetResizedImage::handleRequest"
+  handler          = "vgu.cloud26.LambdaGetResizedImageStreaming::handleRequest"
   source_code_hash = filebase64sha256("${path.module}/../LambdaGetResizedImage/target/LambdaGetResizedImage-1.0-SNAPSHOT.jar")
   runtime          = var.lambda_runtime
   timeout          = var.lambda_timeout
@@ -11,8 +11,15 @@ resource "aws_lambda_function" "get_resized_image" {
 
   environment {
     variables = {
-      RESIZED_BUCKET_NAME = aws_s3_bucket.resized_bucket.id
-      SOURCE_BUCKET_NAME  = aws_s3_bucket.source_bucket.id
+      RESIZED_BUCKET_NAME     = aws_s3_bucket.resized_bucket.id
+      SOURCE_BUCKET_NAME      = aws_s3_bucket.source_bucket.id
+      DERIVATIVE_SIZES        = var.derivative_sizes
+      SCALING_STRATEGY        = var.scaling_strategy
+      ENCODER_PROFILES        = var.encoder_profiles
+      OUTPUT_FORMAT           = var.output_format
+      PRESIGN_TTL_SECONDS     = var.presign_ttl_seconds
+      THUMBNAIL_CACHE_PERCENT = var.thumbnail_cache_percent
+      JAVA_TOOL_OPTIONS       = "--add-modules=jdk.incubator.vector"
     }
   }
 }
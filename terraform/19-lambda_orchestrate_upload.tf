@@ -21,6 +21,9 @@ resource "aws_lambda_function" "orchestrate_upload" {
       DB_USER                  = "admin"
       DB_PASSWORD              = var.db_password
       DB_NAME                  = "Cloud26"
+      MAX_IMAGE_PIXELS         = var.max_image_pixels
+      DUPLICATE_MODE           = var.duplicate_mode
+      DUPLICATE_MAX_DISTANCE   = var.duplicate_max_distance
       # SECRET_KEY removed - now retrieved from Parameter Store via HTTP
     }
   }
@@ -75,6 +75,66 @@ resource "aws_s3_bucket_versioning" "resized_bucket_versioning" {
   }
 }
 
+# Bookkeeping objects the functions rewrite or delete all the time; with
+# versioning every rewrite would otherwise be kept forever
+resource "aws_s3_bucket_lifecycle_configuration" "resized_bucket_lifecycle" {
+  bucket = aws_s3_bucket.resized_bucket.id
+
+  # Change journal, rewritten on every upload and delete
+  rule {
+    id     = "change-journal"
+    status = "Enabled"
+
+    filter {
+      prefix = "stamps/"
+    }
+
+    noncurrent_version_expiration {
+      noncurrent_days = 1
+    }
+  }
+
+  # Single-flight leases of LambdaGetResizedImage, created and deleted per
+  # contended resize: each leaves a noncurrent version and a delete marker
+  rule {
+    id     = "resize-leases"
+    status = "Enabled"
+
+    filter {
+      prefix = "lease/"
+    }
+
+    noncurrent_version_expiration {
+      noncurrent_days = 1
+    }
+
+    expiration {
+      expired_object_delete_marker = true
+    }
+  }
+
+  # Deep Zoom requests LambdaResize queues and LambdaTile deletes when done;
+  # same churn as the leases
+  rule {
+    id     = "tile-requests"
+    status = "Enabled"
+
+    filter {
+      prefix = "tile-requests/"
+    }
+
+    noncurrent_version_expiration {
+      noncurrent_days = 1
+    }
+
+    expiration {
+      expired_object_delete_marker = true
+    }
+  }
+
+  depends_on = [aws_s3_bucket_versioning.resized_bucket_versioning]
+}
+
 # S3 bucket notification to trigger Lambda resize function AND delete cleanup
 resource "aws_s3_bucket_notification" "source_bucket_notification" {
   bucket = aws_s3_bucket.source_bucket.id
@@ -7,12 +7,17 @@ resource "aws_lambda_function" "resize_wrapper" {
   source_code_hash = filebase64sha256("${path.module}/../LambdaResizeWrapper/target/LambdaResizeWrapper-1.0-SNAPSHOT.jar")
   runtime          = var.lambda_runtime
   timeout          = 60   # Longer timeout for image processing
-  memory_size      = 1024 # More memory for image processing
+  memory_size      = var.lambda_memory # Subsampled decode keeps thumbnails well inside the default
 
   environment {
     variables = {
-      DEST_BUCKET_NAME = aws_s3_bucket.resized_bucket.id
-      BUCKET_NAME      = aws_s3_bucket.source_bucket.id
+      DEST_BUCKET_NAME         = aws_s3_bucket.resized_bucket.id
+      BUCKET_NAME              = aws_s3_bucket.source_bucket.id
+      SCALING_STRATEGY         = var.scaling_strategy
+      ENCODER_PROFILES         = var.encoder_profiles
+      OUTPUT_FORMAT            = var.output_format
+      JAVA_TOOL_OPTIONS        = "--add-modules=jdk.incubator.vector"
+      BANDED_DECODE_MIN_PIXELS = var.banded_decode_min_pixels
     }
   }
 }
@@ -0,0 +1,44 @@
+# Lambda Tile Function: Deep Zoom pyramids of large originals, off the
+# thumbnail path. LambdaResize queues an original by writing
+# tile-requests/<key> to the resized bucket; its creation invokes this.
+resource "aws_lambda_function" "tile" {
+  filename         = "${path.module}/../LambdaTile/target/LambdaTile-1.0-SNAPSHOT.jar"
+  function_name    = "LambdaTile"
+  role             = aws_iam_role.lambda_role.arn
+  handler          = "vgu.cloud26.LambdaTile::handleRequest"
+  source_code_hash = filebase64sha256("${path.module}/../LambdaTile/target/LambdaTile-1.0-SNAPSHOT.jar")
+  runtime          = var.lambda_runtime
+  timeout          = var.tile_timeout
+  memory_size      = var.tile_memory # The whole original is decoded once
+
+  environment {
+    variables = {
+      BUCKET_NAME       = aws_s3_bucket.source_bucket.id
+      DEST_BUCKET_NAME  = aws_s3_bucket.resized_bucket.id
+      JAVA_TOOL_OPTIONS = "--add-modules=jdk.incubator.vector"
+    }
+  }
+}
+
+# Lambda permission for S3 to invoke tile function
+resource "aws_lambda_permission" "allow_s3_invoke_tile" {
+  statement_id  = "AllowS3Invoke"
+  action        = "lambda:InvokeFunction"
+  function_name = aws_lambda_function.tile.function_name
+  principal     = "s3.amazonaws.com"
+  source_arn    = aws_s3_bucket.resized_bucket.arn
+}
+
+# S3 bucket notification to trigger Lambda tile function on tiling requests
+resource "aws_s3_bucket_notification" "resized_bucket_notification" {
+  bucket = aws_s3_bucket.resized_bucket.id
+
+  lambda_function {
+    lambda_function_arn = aws_lambda_function.tile.arn
+    events              = ["s3:ObjectCreated:*"]
+    filter_prefix       = "tile-requests/"
+    filter_suffix       = ""
+  }
+
+  depends_on = [aws_lambda_permission.allow_s3_invoke_tile]
+}
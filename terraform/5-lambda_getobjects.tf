@@ -3,7 +3,7 @@ resource "aws_lambda_function" "get_objects" {
   filename         = "${path.module}/../LambdaGetObjects/target/LambdaGetObjects-1.0-SNAPSHOT.jar"
   function_name    = "LambdaGetObjects"
   role             = aws_iam_role.lambda_role.arn
-  handler          = "vgu.cloud26.LambdaGetObject::handleRequest"
+  handler          = "vgu.cloud26.LambdaGetObjectStreaming::handleRequest"
   source_code_hash = filebase64sha256("${path.module}/../LambdaGetObjects/target/LambdaGetObjects-1.0-SNAPSHOT.jar")
   runtime          = var.lambda_runtime
   timeout          = var.lambda_timeout
@@ -22,6 +22,7 @@ resource "aws_lambda_function" "get_objects" {
       DB_USER                = "admin"
       DB_PASSWORD            = var.db_password
       DB_NAME                = "Cloud26"
+      PRESIGN_TTL_SECONDS    = var.presign_ttl_seconds
     }
   }
 
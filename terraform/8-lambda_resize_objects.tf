@@ -7,11 +7,18 @@ resource "aws_lambda_function" "resize" {
   source_code_hash = filebase64sha256("${path.module}/../LambdaResize/target/LambdaResize-1.0-SNAPSHOT.jar")
   runtime          = var.lambda_runtime
   timeout          = 60   # Longer timeout for image processing
-  memory_size      = 1024 # More memory for image processing
+  memory_size      = var.lambda_memory # Subsampled decode keeps thumbnails well inside the default
 
   environment {
     variables = {
-      DEST_BUCKET_NAME = aws_s3_bucket.resized_bucket.id
+      DEST_BUCKET_NAME  = aws_s3_bucket.resized_bucket.id
+      DERIVATIVE_SIZES  = var.derivative_sizes
+      SCALING_STRATEGY  = var.scaling_strategy
+      ENCODER_PROFILES  = var.encoder_profiles
+      OUTPUT_FORMAT     = var.output_format
+      TILE_MIN_BYTES    = var.tile_min_bytes # Larger originals are queued for LambdaTile
+      # Enables the SIMD resampling kernel; without it the scalar loop is used
+      JAVA_TOOL_OPTIONS = "--add-modules=jdk.incubator.vector"
     }
   }
 }
@@ -23,3 +23,8 @@ resource "aws_cloudwatch_log_group" "resize_logs" {
   name              = "/aws/lambda/${aws_lambda_function.resize.function_name}"
   retention_in_days = 7
 }
+
+resource "aws_cloudwatch_log_group" "tile_logs" {
+  name              = "/aws/lambda/${aws_lambda_function.tile.function_name}"
+  retention_in_days = 7
+}